@@ -23,6 +23,8 @@ import ru.mail.polis.dao.shakhmin.NoSuchElementLiteException;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -64,6 +66,22 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting before "to" key (exclusive)
+     * or at the last record if "to" is null, until given "from" key (inclusive)
+     * in <b>descending</b> order according to {@link Record#compareTo(Record)},
+     * i.e. the records of {@link #range(ByteBuffer, ByteBuffer)} in reverse order.
+     * N.B. The default implementation collects the whole range, so a storage should iterate
+     * backwards to read the tail of a range in time proportional to the number of records read.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(@NotNull ByteBuffer from,
+                                             @Nullable ByteBuffer to) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        range(from, to).forEachRemaining(records::push);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -95,6 +113,34 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies the writes of the batch in their order.
+     * Implementations may apply a batch atomically and faster than the writes one by one.
+     * The default storage is sharded and applies a batch atomically within each shard only,
+     * see {@link ru.mail.polis.dao.shakhmin.ShardedDao#applyBatch(WriteBatch)}.
+     */
+    default void applyBatch(@NotNull WriteBatch batch) throws IOException {
+        for (final WriteBatch.Write write : batch.writes()) {
+            final ByteBuffer value = write.getValue();
+            if (value == null) {
+                remove(write.getKey());
+            } else {
+                upsert(write.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the storage, whose iterators see the records as they are now
+     * however long they run while writes go on.
+     *
+     * @throws UnsupportedOperationException if the storage doesn't support snapshots
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Performs compaction.
      */
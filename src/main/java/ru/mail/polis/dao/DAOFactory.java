@@ -17,9 +17,12 @@
 package ru.mail.polis.dao;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.shakhmin.DeflateCodec;
 import ru.mail.polis.dao.shakhmin.LSMDao;
+import ru.mail.polis.dao.shakhmin.ShardedDao;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Custom {@link DAO} factory.
@@ -29,7 +32,17 @@ import java.io.IOException;
 public final class DAOFactory {
 
     static final long MAX_HEAP = 256 * 1024 * 1024;
-    static final long FLUSH_THRESHOLD = 4 * 1024 * 1024;
+    static final int SHARDS = 2;
+    static final long FLUSH_THRESHOLD = 16 * 1024 * 1024;
+    static final long MEM_TABLE_BUDGET = 48 * 1024 * 1024;
+    static final int FLUSHING_THREADS = 2;
+    static final int MAX_PENDING_MEM_TABLES = 3;
+    static final long WRITE_STALL_TIMEOUT_MILLIS = 10_000;
+    /** Well under the second replicas are waited for, so the 503 of a stalled replica arrives in time. */
+    static final long STAMPED_WRITE_STALL_TIMEOUT_MILLIS = 100;
+    static final long BLOCK_CACHE_SIZE = 16 * 1024 * 1024;
+    static final long ROW_CACHE_SIZE = 8 * 1024 * 1024;
+    static final long COMPACTION_RATE_LIMIT = 64 * 1024 * 1024;
 
     private DAOFactory() {
         // Not instantiatable
@@ -55,6 +68,20 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new LSMDao(data, FLUSH_THRESHOLD);
+        return new ShardedDao.Builder(data)
+                .shards(SHARDS)
+                .shardBuilder(dir -> new LSMDao.Builder(dir)
+                        .flushThreshold(FLUSH_THRESHOLD / SHARDS)
+                        .memTableBudget(MEM_TABLE_BUDGET / SHARDS)
+                        .flushingThreads(FLUSHING_THREADS / SHARDS)
+                        .maxPendingMemTables(MAX_PENDING_MEM_TABLES)
+                        .writeStallTimeout(WRITE_STALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .stampedWriteStallTimeout(STAMPED_WRITE_STALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .offHeapMemTable(true)
+                        .codec(new DeflateCodec())
+                        .blockCacheSize(BLOCK_CACHE_SIZE / SHARDS)
+                        .rowCacheSize(ROW_CACHE_SIZE / SHARDS)
+                        .compactionRateLimit(COMPACTION_RATE_LIMIT / SHARDS))
+                .build();
     }
 }
@@ -19,6 +19,7 @@ package ru.mail.polis.dao;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import org.jetbrains.annotations.NotNull;
 import com.google.common.base.Functions;
 
@@ -52,7 +53,16 @@ public final class Iters {
 
     public static <E extends Comparable<E>> Iterator<E> until(@NotNull final Iterator<E> iter,
                                                               @NotNull final E until) {
-        return new UntilIterator<>(iter, until);
+        return new WhileIterator<>(iter, e -> e.compareTo(until) < 0);
+    }
+
+    /**
+     * Stops the iterator at the first element which doesn't match the condition,
+     * e.g. bounds a descending range from below.
+     */
+    public static <E> Iterator<E> takeWhile(@NotNull final Iterator<E> iter,
+                                            @NotNull final Predicate<E> condition) {
+        return new WhileIterator<>(iter, condition);
     }
 
     public static <E> Iterator<E> collapseEquals(@NotNull final Iterator<E> iter,
@@ -64,23 +74,23 @@ public final class Iters {
         return new CollapseEqualsIterator<>(iter);
     }
 
-    private static class UntilIterator<E extends Comparable<E>> implements Iterator<E> {
+    private static class WhileIterator<E> implements Iterator<E> {
         private final Iterator<E> iter;
-        private final E until;
+        private final Predicate<E> condition;
 
         private E next;
 
-        UntilIterator(
+        WhileIterator(
                 @NotNull final Iterator<E> iter,
-                @NotNull final E until) {
+                @NotNull final Predicate<E> condition) {
             this.iter = iter;
-            this.until = until;
+            this.condition = condition;
             this.next = iter.hasNext() ? iter.next() : null;
         }
 
         @Override
         public boolean hasNext() {
-            return next != null && next.compareTo(until) < 0;
+            return next != null && condition.test(next);
         }
 
         @Override
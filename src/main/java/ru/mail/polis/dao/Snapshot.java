@@ -0,0 +1,79 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.shakhmin.NoSuchElementLiteException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A point-in-time view of a {@link DAO}: the records are seen as they were when the snapshot
+ * was taken, whatever is written after. A snapshot retains the data it sees, so it must be closed
+ * once it is not needed, and its iterators must not be used after it is closed.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * Provides iterator over the {@link Record}s of the snapshot starting at "from" key (inclusive)
+     * in <b>ascending</b> order, see {@link DAO#iterator(ByteBuffer)}.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator over the {@link Record}s of the snapshot starting at "from" key (inclusive)
+     * until given "to" key (exclusive), see {@link DAO#range(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    default Iterator<Record> range(@NotNull final ByteBuffer from,
+                                   @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return Iters.until(iterator(from), Record.of(to, ByteBuffer.allocate(0)));
+    }
+
+    /**
+     * Provides iterator over the {@link Record}s of the snapshot in <b>descending</b> order,
+     * see {@link DAO#descendingRange(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                             @Nullable final ByteBuffer to) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        range(from, to).forEachRemaining(records::push);
+        return records.iterator();
+    }
+
+    /**
+     * Obtains the value of the key in the snapshot.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    default ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final Iterator<Record> iter = iterator(key);
+        if (iter.hasNext()) {
+            final Record next = iter.next();
+            if (next.getKey().equals(key)) {
+                return next.getValue();
+            }
+        }
+        throw new NoSuchElementLiteException("Not found");
+    }
+
+    /**
+     * Releases the data the snapshot retains.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,95 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Upserts and removals to be applied to a {@link DAO} together, in the order they are added.
+ */
+public final class WriteBatch {
+
+    @NotNull private final List<Write> writes = new ArrayList<>();
+
+    /**
+     * Adds an upsert of the key.
+     *
+     * @param key key
+     * @param value value
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch upsert(@NotNull final ByteBuffer key,
+                             @NotNull final ByteBuffer value) {
+        writes.add(new Write(key, value));
+        return this;
+    }
+
+    /**
+     * Adds a removal of the key.
+     *
+     * @param key key
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        writes.add(new Write(key, null));
+        return this;
+    }
+
+    /**
+     * Adds a write of another batch.
+     *
+     * @param write upsert or removal
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch add(@NotNull final Write write) {
+        writes.add(write);
+        return this;
+    }
+
+    @NotNull
+    public List<Write> writes() {
+        return Collections.unmodifiableList(writes);
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    public static final class Write {
+        @NotNull private final ByteBuffer key;
+        @Nullable private final ByteBuffer value;
+
+        private Write(@NotNull final ByteBuffer key,
+                      @Nullable final ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @NotNull
+        public ByteBuffer getKey() {
+            return key.asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the value of an upsert or null for a removal.
+         */
+        @Nullable
+        public ByteBuffer getValue() {
+            return value == null ? null : value.asReadOnlyBuffer();
+        }
+
+        public boolean isRemove() {
+            return value == null;
+        }
+    }
+}
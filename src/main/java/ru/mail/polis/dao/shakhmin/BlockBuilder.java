@@ -0,0 +1,128 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes sorted rows of an {@link SSTable} block.
+ *
+ * <p>Keys are delta encoded: a row stores only the suffix of its key that
+ * differs from the key of the previous row. Every {@link #RESTART_INTERVAL}
+ * rows a restart point with the full key is written, so a block can be
+ * binary searched by the restart points and then scanned from the nearest one:
+ * <pre>
+ * [row 0]...[row N-1][restart offset 0 (int)]...[restart offset R-1 (int)][restarts number (int)]
+ * </pre>
+ * where a row is {@code [shared (varint)][unshared (varint)][key suffix][timestamp (long)][value size (varint)][value]}
+ * and a tombstone (negative timestamp) has no value part.
+ */
+final class BlockBuilder {
+    static final int RESTART_INTERVAL = 16;
+    /** Maximum size of a varint, an int takes up to 5 groups of 7 bits. */
+    private static final int MAX_VAR_INT_SIZE = 5;
+
+    @NotNull private ByteBuffer buffer;
+    @NotNull private byte[] lastKey = new byte[64];
+    @NotNull private int[] restarts = new int[16];
+    private int lastKeySize;
+    private int restartsNumber;
+    private int rowsNumber;
+
+    BlockBuilder(final int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    boolean isEmpty() {
+        return rowsNumber == 0;
+    }
+
+    /**
+     * Returns the size of the rows added to the block so far.
+     */
+    int sizeInBytes() {
+        return buffer.position() + Integer.BYTES * (restartsNumber + 1);
+    }
+
+    void add(@NotNull final ByteBuffer key,
+             @NotNull final Cell cell) {
+        final int keySize = key.remaining();
+        int shared = 0;
+        if (rowsNumber % RESTART_INTERVAL == 0) {
+            if (restartsNumber == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartsNumber * 2);
+            }
+            restarts[restartsNumber++] = buffer.position();
+        } else {
+            final int keyFrom = key.position();
+            final int length = Math.min(lastKeySize, keySize);
+            while (shared < length && lastKey[shared] == key.get(keyFrom + shared)) {
+                shared++;
+            }
+        }
+        final int unshared = keySize - shared;
+        final var data = cell.getData();
+        ensureCapacity(MAX_VAR_INT_SIZE * 3 + unshared + Long.BYTES + data.remaining());
+        putVarInt(shared);
+        putVarInt(unshared);
+        buffer.put(key.duplicate().position(key.position() + shared))
+                .putLong(cell.getTimestamp());
+        if (!cell.isRemoved()) {
+            putVarInt(data.remaining());
+            buffer.put(data);
+        }
+
+        if (lastKey.length < keySize) {
+            lastKey = Arrays.copyOf(lastKey, Math.max(keySize, lastKey.length * 2));
+        }
+        key.duplicate().position(key.position() + shared).get(lastKey, shared, unshared);
+        lastKeySize = keySize;
+        rowsNumber++;
+    }
+
+    /**
+     * Returns the last added key, valid until the next {@link #add(ByteBuffer, Cell)}.
+     */
+    @NotNull
+    ByteBuffer lastKey() {
+        return ByteBuffer.wrap(lastKey, 0, lastKeySize);
+    }
+
+    /**
+     * Completes the block.
+     *
+     * @return the encoded block, valid until {@link #reset()}
+     */
+    @NotNull
+    ByteBuffer finish() {
+        ensureCapacity(Integer.BYTES * (restartsNumber + 1));
+        for (int i = 0; i < restartsNumber; i++) {
+            buffer.putInt(restarts[i]);
+        }
+        buffer.putInt(restartsNumber);
+        return buffer.flip();
+    }
+
+    void reset() {
+        buffer.clear();
+        lastKeySize = 0;
+        restartsNumber = 0;
+        rowsNumber = 0;
+    }
+
+    private void putVarInt(final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    private void ensureCapacity(final int needed) {
+        if (buffer.remaining() < needed) {
+            final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+            buffer = ByteBuffer.allocate(capacity).put(buffer.flip());
+        }
+    }
+}
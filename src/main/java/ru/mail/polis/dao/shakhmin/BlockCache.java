@@ -0,0 +1,87 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Cache of decoded {@link SSTable} blocks shared by all the tables of a storage.
+ *
+ * <p>The size of the cache is bounded by the total capacity of the cached blocks,
+ * blocks are evicted by the CLOCK algorithm. Blocks are copied either to the heap
+ * or, if the cache is off-heap, to direct buffers which don't count against the heap limit.
+ */
+public final class BlockCache {
+    private static final int SHARDS_NUMBER = 16;
+
+    @NotNull private final ClockCache<Long, ByteBuffer> cache;
+    private final boolean offHeap;
+
+    /**
+     * Constructs a new on-heap cache.
+     *
+     * @param capacityInBytes maximum total size of the cached blocks
+     */
+    public BlockCache(final long capacityInBytes) {
+        this(capacityInBytes, false);
+    }
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacityInBytes maximum total size of the cached blocks
+     * @param offHeap whether to store blocks in direct buffers
+     */
+    public BlockCache(final long capacityInBytes,
+                      final boolean offHeap) {
+        this.cache = new ClockCache<>(capacityInBytes, SHARDS_NUMBER, ByteBuffer::capacity);
+        this.offHeap = offHeap;
+    }
+
+    private static long key(final long tableId,
+                            final int block) {
+        return tableId << Integer.SIZE | block;
+    }
+
+    @Nullable
+    public ByteBuffer get(final long tableId,
+                          final int block) {
+        final var cached = cache.get(key(tableId, block));
+        return cached == null ? null : cached.duplicate();
+    }
+
+    /**
+     * Caches the block, the block is copied if it is mapped or the cache is off-heap.
+     *
+     * @param tableId unique id of the table
+     * @param block number of the block in the table
+     * @param data decoded block
+     */
+    public void put(final long tableId,
+                    final int block,
+                    @NotNull final ByteBuffer data) {
+        if (!cache.accepts(data.remaining())) {
+            return;
+        }
+        var stored = data;
+        if (offHeap || data.isDirect()) {
+            stored = offHeap
+                    ? ByteBuffer.allocateDirect(data.remaining())
+                    : ByteBuffer.allocate(data.remaining());
+            stored.put(data.duplicate()).flip();
+        }
+        cache.put(key(tableId, block), stored.asReadOnlyBuffer());
+    }
+
+    public long hitCount() {
+        return cache.hitCount();
+    }
+
+    public long missCount() {
+        return cache.missCount();
+    }
+
+    public long sizeInBytes() {
+        return cache.weight();
+    }
+}
@@ -0,0 +1,195 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads rows of a block encoded by {@link BlockBuilder}.
+ *
+ * <p>The cursor points to a row or is invalid. The key of the current row is
+ * reconstructed in a reusable array and a {@link Row} is materialized only on demand.
+ */
+final class BlockCursor {
+    @NotNull private final ByteBuffer block;
+    private final int restartsPosition;
+    private final int restartsNumber;
+
+    @NotNull private byte[] key = new byte[64];
+    private int keySize;
+    private long timestamp;
+    private int valuePosition;
+    private int valueSize;
+    private int current;
+    private int next;
+
+    BlockCursor(@NotNull final ByteBuffer block) {
+        this.block = block;
+        this.restartsNumber = block.getInt(block.limit() - Integer.BYTES);
+        this.restartsPosition = block.limit() - Integer.BYTES * (restartsNumber + 1);
+        this.current = restartsPosition;
+    }
+
+    boolean isValid() {
+        return current < restartsPosition;
+    }
+
+    void seekToFirst() {
+        seekToRestart(0);
+    }
+
+    /**
+     * Moves the cursor to the first row with a key not less than the given one.
+     *
+     * @param target key to seek
+     */
+    void seek(@NotNull final ByteBuffer target) {
+        seekToRestart(Math.max(restartBefore(target), 0));
+        while (isValid() && compareKey(target) < 0) {
+            next();
+        }
+    }
+
+    int restartsNumber() {
+        return restartsNumber;
+    }
+
+    /**
+     * Finds the last restart point with a key less than the given one.
+     *
+     * @param target key
+     * @return index of the restart point or -1 if there is none
+     */
+    int restartBefore(@NotNull final ByteBuffer target) {
+        int left = -1;
+        int right = restartsNumber - 1;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (compareRestartKey(mid, target) < 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Tells whether the cursor points to a row before the given restart point,
+     * so the rows of a restart interval can be read from its restart point on.
+     *
+     * @param restart index of the restart point, may be the number of restarts for the end of the block
+     */
+    boolean isBefore(final int restart) {
+        return isValid() && (restart >= restartsNumber || current < restartOffset(restart));
+    }
+
+    void next() {
+        current = next;
+        if (!isValid()) {
+            return;
+        }
+        int position = current;
+        final int shared = varIntAt(position);
+        position += varIntSize(shared);
+        final int unshared = varIntAt(position);
+        position += varIntSize(unshared);
+        keySize = shared + unshared;
+        if (key.length < keySize) {
+            key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+        }
+        block.duplicate().position(position).get(key, shared, unshared);
+        position += unshared;
+        timestamp = block.getLong(position);
+        position += Long.BYTES;
+        if (timestamp < 0) {
+            valueSize = 0;
+        } else {
+            valueSize = varIntAt(position);
+            position += varIntSize(valueSize);
+        }
+        valuePosition = position;
+        next = position + valueSize;
+    }
+
+    /**
+     * Compares the key of the current row with the given one.
+     */
+    int compareKey(@NotNull final ByteBuffer other) {
+        final int otherFrom = other.position();
+        final int length = Math.min(keySize, other.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(key[i], other.get(otherFrom + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return keySize - other.remaining();
+    }
+
+    @NotNull
+    Row row(final long serialNumber) {
+        final var rowKey = ByteBuffer.wrap(Arrays.copyOf(key, keySize));
+        if (timestamp < 0) {
+            return Row.of(rowKey, Cell.tombstone(-timestamp), serialNumber);
+        }
+        final var value = block.duplicate()
+                .position(valuePosition)
+                .limit(valuePosition + valueSize)
+                .slice();
+        return Row.of(rowKey, Cell.of(timestamp, value), serialNumber);
+    }
+
+    void seekToRestart(final int restart) {
+        next = restartsNumber == 0 ? restartsPosition : restartOffset(restart);
+        next();
+    }
+
+    private int restartOffset(final int restart) {
+        return block.getInt(restartsPosition + restart * Integer.BYTES);
+    }
+
+    /**
+     * Compares the full key stored at a restart point with {@code other} in place.
+     */
+    private int compareRestartKey(final int restart,
+                                  @NotNull final ByteBuffer other) {
+        int position = restartOffset(restart);
+        // Shared part is always empty at a restart point
+        position += varIntSize(varIntAt(position));
+        final int size = varIntAt(position);
+        position += varIntSize(size);
+        final int otherFrom = other.position();
+        final int length = Math.min(size, other.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(block.get(position + i), other.get(otherFrom + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - other.remaining();
+    }
+
+    private int varIntAt(final int position) {
+        int result = 0;
+        int shift = 0;
+        int offset = position;
+        byte b;
+        do {
+            b = block.get(offset++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    private static int varIntSize(final int value) {
+        int size = 1;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            size++;
+            remaining >>>= 7;
+        }
+        return size;
+    }
+}
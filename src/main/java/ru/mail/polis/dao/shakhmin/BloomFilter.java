@@ -0,0 +1,131 @@
+package ru.mail.polis.dao.shakhmin;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A Bloom filter over the keys of an {@link SSTable}.
+ *
+ * <p>The bits are stored as a sequence of longs, so a filter
+ * written by {@link #writeTo(ByteBuffer)} can be read back directly
+ * from a mapped file without copying.
+ */
+public final class BloomFilter {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    @NotNull private final LongBuffer words;
+    private final long bitsNumber;
+    private final int hashesNumber;
+
+    private BloomFilter(@NotNull final LongBuffer words,
+                        final int hashesNumber) {
+        this.words = words;
+        this.bitsNumber = (long) words.limit() * Long.SIZE;
+        this.hashesNumber = hashesNumber;
+    }
+
+    /**
+     * Reads a filter previously written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param words the bits of the filter
+     * @param hashesNumber the number of hash functions
+     * @return a filter backed by {@code words}
+     */
+    @NotNull
+    public static BloomFilter of(@NotNull final LongBuffer words,
+                                 final int hashesNumber) {
+        if (words.limit() == 0 || hashesNumber <= 0) {
+            throw new IllegalArgumentException("Malformed bloom filter");
+        }
+        return new BloomFilter(words, hashesNumber);
+    }
+
+    /**
+     * Builds a filter of the optimal size for the given keys.
+     *
+     * @param hashes hashes of the keys obtained by {@link #hash(ByteBuffer)}
+     * @param keysNumber the number of meaningful elements in {@code hashes}
+     * @return a filter containing all the keys
+     */
+    @NotNull
+    public static BloomFilter create(@NotNull final long[] hashes,
+                                     final int keysNumber) {
+        final long n = Math.max(keysNumber, 1);
+        final double ln2 = Math.log(2);
+        final long optimalBits = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_PROBABILITY) / (ln2 * ln2));
+        final int wordsNumber = Math.toIntExact((optimalBits + Long.SIZE - 1) / Long.SIZE);
+        final int hashesNumber = Math.max(1, (int) Math.round((double) wordsNumber * Long.SIZE / n * ln2));
+        final var filter = new BloomFilter(LongBuffer.allocate(wordsNumber), hashesNumber);
+        for (int i = 0; i < keysNumber; i++) {
+            filter.put(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Computes the hash of the key that is used by the filter.
+     *
+     * @param key key
+     * @return 64-bit hash of the key
+     */
+    public static long hash(@NotNull final ByteBuffer key) {
+        return HASH_FUNCTION.hashBytes(key.duplicate()).asLong();
+    }
+
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashesNumber; i++) {
+            final long bit = bitIndex(hash1, hash2, i);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(final long hash) {
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashesNumber; i++) {
+            final long bit = bitIndex(hash1, hash2, i);
+            final int word = (int) (bit >>> 6);
+            words.put(word, words.get(word) | (1L << bit));
+        }
+    }
+
+    private long bitIndex(final int hash1,
+                          final int hash2,
+                          final int i) {
+        int combinedHash = hash1 + i * hash2;
+        if (combinedHash < 0) {
+            combinedHash = ~combinedHash;
+        }
+        return combinedHash % bitsNumber;
+    }
+
+    public int wordsNumber() {
+        return words.limit();
+    }
+
+    public int hashesNumber() {
+        return hashesNumber;
+    }
+
+    /**
+     * Writes the bits of the filter.
+     *
+     * @param buffer destination with at least {@code wordsNumber() * Long.BYTES} bytes remaining
+     */
+    public void writeTo(@NotNull final ByteBuffer buffer) {
+        for (int i = 0; i < words.limit(); i++) {
+            buffer.putLong(words.get(i));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ru.mail.polis.dao.shakhmin;
 
 import java.nio.ByteBuffer;
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.WriteBatch;
 
 public final class Cell implements Comparable<Cell> {
 
@@ -24,6 +25,20 @@ public final class Cell implements Comparable<Cell> {
         return new Cell(timestamp, data);
     }
 
+    /**
+     * Creates the cell written by an upsert or a removal of a batch.
+     *
+     * @param write write of a batch
+     * @param timestamp timestamp of the batch
+     * @return value or tombstone
+     */
+    @NotNull
+    public static Cell of(@NotNull final WriteBatch.Write write,
+                          final long timestamp) {
+        final var value = write.getValue();
+        return value == null ? tombstone(timestamp) : of(timestamp, value);
+    }
+
     @NotNull
     public static Cell tombstone(final long timestamp) {
         return new Cell(-timestamp, EMPTY_DATA);
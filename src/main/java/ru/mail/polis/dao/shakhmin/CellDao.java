@@ -0,0 +1,62 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.WriteBatch;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A storage which exposes cells, i.e. values and tombstones with their timestamps,
+ * so that the service can reconcile the answers of the replicas.
+ */
+public interface CellDao extends DAO {
+
+    /**
+     * Gets the newest cell of the key.
+     *
+     * @param key key
+     * @return null if cell is not found and cell otherwise
+     * @throws IOException if an I/O error occurs
+     */
+    @Nullable
+    Cell getCell(@NotNull ByteBuffer key) throws IOException;
+
+    /**
+     * Inserts or updates the value with the timestamp as is, e.g. the one assigned by
+     * the coordinator of a replicated write, see {@link HybridClock}. The clock of the storage
+     * catches up with the timestamp, so later writes stamped by the storage are newer.
+     * A storage may stop waiting for a stalled flush sooner for such writes than for the others,
+     * see {@link LSMDao.Builder#stampedWriteStallTimeout(long, java.util.concurrent.TimeUnit)}.
+     *
+     * @param key key
+     * @param value value
+     * @param timestamp hybrid timestamp of the write
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if the timestamp is rejected by {@link HybridClock#update(long)}
+     */
+    void upsert(@NotNull ByteBuffer key,
+                @NotNull ByteBuffer value,
+                long timestamp) throws IOException;
+
+    /**
+     * Removes the value with the timestamp as is, see {@link #upsert(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param key key
+     * @param timestamp hybrid timestamp of the removal
+     * @throws IOException if an I/O error occurs
+     */
+    void remove(@NotNull ByteBuffer key,
+                long timestamp) throws IOException;
+
+    /**
+     * Applies the batch with the timestamp as is, see {@link #upsert(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param batch writes
+     * @param timestamp hybrid timestamp of the writes
+     * @throws IOException if an I/O error occurs
+     */
+    void applyBatch(@NotNull WriteBatch batch,
+                    long timestamp) throws IOException;
+}
@@ -0,0 +1,179 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded cache with CLOCK eviction.
+ *
+ * <p>The cache is split into shards by the hash of a key, each shard owns an equal
+ * part of the capacity. A hit doesn't take any lock, it only sets the reference bit
+ * of the entry. Insertions sweep the clock of the shard under its lock and evict
+ * the entries which weren't referenced since the previous sweep.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+final class ClockCache<K, V> {
+
+    @NotNull private final Shard<K, V>[] shards;
+    @NotNull private final ToIntFunction<V> weigher;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity maximum total weight of the cached values
+     * @param shardsNumber number of shards, must be a power of two
+     * @param weigher computes the weight of a value
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ClockCache(final long capacity,
+               final int shardsNumber,
+               @NotNull final ToIntFunction<V> weigher) {
+        if (Integer.bitCount(shardsNumber) != 1) {
+            throw new IllegalArgumentException("Number of shards must be a power of two");
+        }
+        this.weigher = weigher;
+        this.shards = new Shard[shardsNumber];
+        for (int i = 0; i < shardsNumber; i++) {
+            shards[i] = new Shard<>(capacity / shardsNumber);
+        }
+    }
+
+    @NotNull
+    private Shard<K, V> shard(@NotNull final K key) {
+        final int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    @Nullable
+    V get(@NotNull final K key) {
+        final var entry = shard(key).map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Puts the value to the cache unless its weight exceeds the capacity of a shard.
+     */
+    void put(@NotNull final K key,
+             @NotNull final V value) {
+        final var shard = shard(key);
+        final int weight = weigher.applyAsInt(value);
+        if (weight > shard.capacity) {
+            return;
+        }
+        shard.put(new Entry<>(key, value, weight));
+    }
+
+    void invalidate(@NotNull final K key) {
+        shard(key).invalidate(key);
+    }
+
+    /**
+     * Checks whether a value of the given weight can be cached at all.
+     */
+    boolean accepts(final int weight) {
+        return weight <= shards[0].capacity;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long weight() {
+        long weight = 0;
+        for (final var shard : shards) {
+            weight += shard.weight();
+        }
+        return weight;
+    }
+
+    private static final class Entry<K, V> {
+        @NotNull private final K key;
+        @NotNull private final V value;
+        private final int weight;
+        private volatile boolean referenced;
+        private boolean removed;
+
+        Entry(@NotNull final K key,
+              @NotNull final V value,
+              final int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Shard<K, V> {
+        private final Map<K, Entry<K, V>> map = new ConcurrentHashMap<>();
+        private final ArrayDeque<Entry<K, V>> clock = new ArrayDeque<>();
+        private final long capacity;
+        private long weight;
+
+        Shard(final long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+
+        synchronized void put(@NotNull final Entry<K, V> entry) {
+            final var previous = map.put(entry.key, entry);
+            if (previous != null) {
+                remove(previous);
+            }
+            clock.addLast(entry);
+            weight += entry.weight;
+            while (weight > capacity) {
+                final var candidate = clock.pollFirst();
+                if (candidate.removed) {
+                    continue;
+                }
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    clock.addLast(candidate);
+                } else {
+                    map.remove(candidate.key, candidate);
+                    remove(candidate);
+                }
+            }
+        }
+
+        synchronized void invalidate(@NotNull final K key) {
+            final var entry = map.remove(key);
+            if (entry != null) {
+                remove(entry);
+            }
+        }
+
+        /**
+         * Accounts the removal of the entry, it leaves the clock lazily
+         * unless too many removed entries have piled up.
+         */
+        private void remove(@NotNull final Entry<K, V> entry) {
+            entry.removed = true;
+            weight -= entry.weight;
+            if (clock.size() > map.size() * 2 + 16) {
+                clock.removeIf(e -> e.removed);
+            }
+        }
+    }
+}
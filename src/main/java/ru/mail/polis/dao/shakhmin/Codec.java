@@ -0,0 +1,82 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compression codec for {@link SSTable} blocks.
+ *
+ * <p>The identifier of a codec is persisted in every SSTable,
+ * so it must never change for a given implementation.
+ */
+public interface Codec {
+
+    /**
+     * The codec that never compresses, so all the blocks are stored as is.
+     */
+    Codec NONE = new Codec() {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public boolean compress(@NotNull final ByteBuffer src,
+                                @NotNull final ByteBuffer dst) {
+            return false;
+        }
+
+        @Override
+        public void decompress(@NotNull final ByteBuffer src,
+                               @NotNull final ByteBuffer dst) throws IOException {
+            throw new IOException("Blocks are not compressed");
+        }
+    };
+
+    int id();
+
+    /**
+     * Compresses the remaining bytes of {@code src} into {@code dst}.
+     *
+     * @param src raw data
+     * @param dst destination buffer
+     * @return false if the compressed data doesn't fit into the remaining space of {@code dst},
+     *         the contents of {@code dst} is undefined in this case
+     */
+    boolean compress(@NotNull ByteBuffer src,
+                     @NotNull ByteBuffer dst);
+
+    /**
+     * Decompresses the remaining bytes of {@code src} into {@code dst}.
+     *
+     * @param src compressed data
+     * @param dst destination buffer with exactly as much space remaining as the raw data takes
+     * @throws IOException if the data is corrupted
+     */
+    void decompress(@NotNull ByteBuffer src,
+                    @NotNull ByteBuffer dst) throws IOException;
+
+    /**
+     * Resolves the codec a table was written with.
+     *
+     * @param id identifier of the codec stored in a table
+     * @param configured the codec the storage is configured with
+     * @return the codec with the given identifier
+     * @throws IOException if the codec is unknown
+     */
+    @NotNull
+    static Codec of(final int id,
+                    @NotNull final Codec configured) throws IOException {
+        if (configured.id() == id) {
+            return configured;
+        }
+        if (NONE.id() == id) {
+            return NONE;
+        }
+        if (DeflateCodec.ID == id) {
+            return new DeflateCodec();
+        }
+        throw new IOException("Unknown codec " + id);
+    }
+}
@@ -0,0 +1,433 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.WriteBatch;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the memory table.
+ *
+ * <p>The log consists of segments, one per memory table, named by the serial number
+ * of the SSTable the memory table is going to be flushed to. A segment is rotated together
+ * with the memory table and may be deleted once the table is flushed.
+ *
+ * <p>Writers append records to a shared in-memory buffer and then wait for the log
+ * to be synced up to their record. The first waiting writer becomes the leader: it writes
+ * the whole buffer, i.e. the records of all the concurrent writers, with a single write
+ * and a single fsync, and wakes the others up (group commit).
+ *
+ * <p>If the write or the fsync fails, the records of the batch are lost and the segment
+ * may be torn, so replay stops there. Then every record appended to the segment from
+ * the last synced one on fails to sync, until the segment is rotated.
+ *
+ * <p>A record is {@code [size (int)][crc32 (int)][key size (int)][key][timestamp (long)][value]},
+ * where size and checksum cover everything after the checksum. A batch is written as a single
+ * record {@code [size (int)][crc32 (int)][-1 (int)][writes number (int)]} followed by
+ * {@code [key size (int)][key][timestamp (long)][value size (int)][value]} for each write.
+ * Replay stops at the first torn or corrupted record.
+ */
+final class CommitLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CommitLog.class);
+
+    static final String PREFIX = "CommitLog_";
+    static final String SUFFIX = ".log";
+    static final String REGEX = PREFIX + "\\d+" + SUFFIX;
+
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+    /** Key size which marks a batch record. */
+    private static final int BATCH = -1;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    @NotNull private final Path dir;
+    private final boolean fsync;
+    @NotNull private FileChannel channel;
+    @NotNull private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    @NotNull private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long appended;
+    private long synced;
+    private boolean syncing;
+    /** Failures of the segments by the positions their failed records start after. */
+    private final NavigableMap<Long, Failure> failures = new TreeMap<>();
+
+    /**
+     * Opens a new log starting with an empty segment.
+     *
+     * @param dir directory of the segments
+     * @param serialNumber serial number of the first segment
+     * @param fsync whether to force the records to the storage device before acknowledging them
+     * @throws IOException if an I/O error occurs
+     */
+    CommitLog(@NotNull final Path dir,
+              final long serialNumber,
+              final boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.channel = open(serialNumber);
+    }
+
+    @NotNull
+    static Path segment(@NotNull final Path dir,
+                        final long serialNumber) {
+        return dir.resolve(PREFIX + serialNumber + SUFFIX);
+    }
+
+    @NotNull
+    private FileChannel open(final long serialNumber) throws IOException {
+        return FileChannel.open(
+                segment(dir, serialNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Appends the record to the current segment without waiting for it to be written.
+     *
+     * @param key key
+     * @param cell written cell
+     * @return position to pass to {@link #sync(long)}
+     */
+    synchronized long append(@NotNull final ByteBuffer key,
+                             @NotNull final Cell cell) {
+        final var value = cell.getData();
+        final int size = Integer.BYTES + key.remaining() + Long.BYTES + value.remaining();
+        final int start = reserve(size);
+        pending.putInt(size)
+                .putInt(0)
+                .putInt(key.remaining())
+                .put(key.duplicate())
+                .putLong(cell.getTimestamp())
+                .put(value);
+        return complete(start);
+    }
+
+    /**
+     * Appends the writes of the batch as a single record, so they are replayed all or none.
+     *
+     * @param batch writes
+     * @param timestamp timestamp of the writes
+     * @return position to pass to {@link #sync(long)}
+     */
+    synchronized long append(@NotNull final WriteBatch batch,
+                             final long timestamp) {
+        int size = Integer.BYTES * 2;
+        for (final var write : batch.writes()) {
+            final var value = write.getValue();
+            size += Integer.BYTES + write.getKey().remaining() + Long.BYTES
+                    + Integer.BYTES + (value == null ? 0 : value.remaining());
+        }
+        final int start = reserve(size);
+        pending.putInt(size)
+                .putInt(0)
+                .putInt(BATCH)
+                .putInt(batch.size());
+        for (final var write : batch.writes()) {
+            final var cell = Cell.of(write, timestamp);
+            final var value = cell.getData();
+            pending.putInt(write.getKey().remaining())
+                    .put(write.getKey())
+                    .putLong(cell.getTimestamp())
+                    .putInt(value.remaining())
+                    .put(value);
+        }
+        return complete(start);
+    }
+
+    /**
+     * Makes room for a record in the buffer.
+     *
+     * @param size size of the record without the header
+     * @return position of the record in the buffer
+     */
+    private int reserve(final int size) {
+        if (pending.remaining() < RECORD_HEADER + size) {
+            final int capacity = Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + size);
+            pending = ByteBuffer.allocate(capacity).put(pending.flip());
+        }
+        return pending.position();
+    }
+
+    /**
+     * Fills in the checksum of the record which has just been put to the buffer.
+     *
+     * @param start position of the record in the buffer
+     * @return position of the end of the record in the log
+     */
+    private long complete(final int start) {
+        crc.reset();
+        crc.update(pending.duplicate().position(start + RECORD_HEADER).limit(pending.position()));
+        pending.putInt(start + Integer.BYTES, (int) crc.getValue());
+        appended += pending.position() - start;
+        return appended;
+    }
+
+    /**
+     * Waits until the log is written (and synced if configured) up to the position.
+     *
+     * @param position position returned by {@link #append(ByteBuffer, Cell)}
+     * @throws IOException if an I/O error occurs, including the one of a write of a batch
+     *                     led by another writer, since the record is lost then
+     */
+    void sync(final long position) throws IOException {
+        final ByteBuffer batch;
+        final FileChannel target;
+        final long batchEnd;
+        synchronized (this) {
+            while (synced < position && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for commit log", e);
+                }
+            }
+            // A record of a rotated failed segment is behind the synced position, but it is lost
+            final var failure = failure(position);
+            if (failure != null) {
+                throw new IOException("Commit log failed to write the record", failure.cause);
+            }
+            if (synced >= position) {
+                return;
+            }
+            syncing = true;
+            batch = pending.flip();
+            pending = spare.clear();
+            spare = batch;
+            target = channel;
+            batchEnd = appended;
+        }
+        boolean done = false;
+        IOException error = null;
+        try {
+            writeFully(target, batch);
+            if (fsync) {
+                target.force(false);
+            }
+            done = true;
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (done) {
+                    synced = batchEnd;
+                } else {
+                    fail(error);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Fails the records of the segment from the last synced one on, must be called holding the monitor.
+     * Nothing is synced to a failed segment, so its failure covers every record appended to it.
+     *
+     * @param cause error of the write or null if it failed with an unchecked exception
+     */
+    private void fail(@Nullable final IOException cause) {
+        failures.put(synced, new Failure(cause == null ? new IOException("Commit log write failed") : cause));
+    }
+
+    /**
+     * Returns the failure of the segment of the record or null if its segment has not failed,
+     * must be called holding the monitor.
+     *
+     * @param position position of the end of the record
+     */
+    @Nullable
+    private Failure failure(final long position) {
+        final var failure = failures.lowerEntry(position);
+        return failure == null || position > failure.getValue().end ? null : failure.getValue();
+    }
+
+    /**
+     * Tells whether the current segment has failed, must be called holding the monitor.
+     */
+    private boolean isFailed() {
+        final var failure = failures.lastEntry();
+        return failure != null && failure.getValue().end == Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes the pending records to the current segment and switches to a new one.
+     * The new segment is created first, so if any step fails, the log keeps appending
+     * to the current segment and the rotation may be retried.
+     *
+     * @param serialNumber serial number of the new segment
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void rotate(final long serialNumber) throws IOException {
+        final var next = open(serialNumber);
+        try {
+            drain();
+        } catch (IOException e) {
+            next.close();
+            Files.delete(segment(dir, serialNumber));
+            throw e;
+        }
+        final var previous = channel;
+        channel = next;
+        previous.close();
+    }
+
+    /**
+     * Deletes the segment of a flushed table.
+     *
+     * @param serialNumber serial number of the segment
+     * @throws IOException if an I/O error occurs
+     */
+    void delete(final long serialNumber) throws IOException {
+        Files.deleteIfExists(segment(dir, serialNumber));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        drain();
+        channel.close();
+    }
+
+    /**
+     * Waits for the leader and writes what is left, must be called holding the monitor.
+     * Nothing is written to a failed segment, the records appended to it fail to sync.
+     */
+    private void drain() throws IOException {
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for commit log", e);
+            }
+        }
+        if (isFailed()) {
+            pending.clear();
+            failures.lastEntry().getValue().end = appended;
+            synced = appended;
+            notifyAll();
+            return;
+        }
+        try {
+            writeFully(channel, pending.flip());
+            if (fsync) {
+                channel.force(false);
+            }
+            synced = appended;
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            pending.clear();
+            notifyAll();
+        }
+    }
+
+    private static void writeFully(@NotNull final FileChannel channel,
+                                   @NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the records of a segment into a memory table.
+     *
+     * @param segment path of the segment
+     * @return memory table with the logged rows
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull
+    static MemTable replay(@NotNull final Path segment) throws IOException {
+        final var table = new MemTable();
+        final var data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        final var checksum = new CRC32();
+        while (data.remaining() >= RECORD_HEADER) {
+            final int size = data.getInt(data.position());
+            final int expected = data.getInt(data.position() + Integer.BYTES);
+            if (size < Integer.BYTES + Long.BYTES || size > data.remaining() - RECORD_HEADER) {
+                break;
+            }
+            final var record = data.duplicate()
+                    .position(data.position() + RECORD_HEADER)
+                    .limit(data.position() + RECORD_HEADER + size)
+                    .slice();
+            checksum.reset();
+            checksum.update(record.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            final int keySize = record.getInt();
+            if (keySize == BATCH ? !replayBatch(record, table) : !replayRecord(record, keySize, table)) {
+                break;
+            }
+            data.position(data.position() + RECORD_HEADER + size);
+        }
+        if (data.hasRemaining()) {
+            log.warn("Commit log {} has {} bytes of torn or corrupted tail", segment, data.remaining());
+        }
+        return table;
+    }
+
+    private static boolean replayRecord(@NotNull final ByteBuffer record,
+                                        final int keySize,
+                                        @NotNull final MemTable table) {
+        if (keySize < 0 || keySize > record.remaining() - Long.BYTES) {
+            return false;
+        }
+        final var key = record.duplicate().limit(Integer.BYTES + keySize).slice();
+        final long timestamp = record.position(Integer.BYTES + keySize).getLong();
+        table.put(key, timestamp < 0 ? Cell.tombstone(-timestamp) : Cell.of(timestamp, record.slice()));
+        return true;
+    }
+
+    private static boolean replayBatch(@NotNull final ByteBuffer record,
+                                       @NotNull final MemTable table) {
+        if (record.remaining() < Integer.BYTES) {
+            return false;
+        }
+        final int writes = record.getInt();
+        for (int i = 0; i < writes; i++) {
+            if (record.remaining() < Integer.BYTES) {
+                return false;
+            }
+            final int keySize = record.getInt();
+            if (keySize < 0 || keySize > record.remaining() - Long.BYTES - Integer.BYTES) {
+                return false;
+            }
+            final var key = record.slice().limit(keySize);
+            final long timestamp = record.position(record.position() + keySize).getLong();
+            final int valueSize = record.getInt();
+            if (valueSize < 0 || valueSize > record.remaining()) {
+                return false;
+            }
+            final var value = record.slice().limit(valueSize);
+            record.position(record.position() + valueSize);
+            table.put(key, timestamp < 0 ? Cell.tombstone(-timestamp) : Cell.of(timestamp, value));
+        }
+        return true;
+    }
+
+    /**
+     * Failure of a segment, it covers the records up to the end of the segment once it is rotated.
+     */
+    private static final class Failure {
+        @NotNull private final IOException cause;
+        private long end = Long.MAX_VALUE;
+
+        Failure(@NotNull final IOException cause) {
+            this.cause = cause;
+        }
+    }
+}
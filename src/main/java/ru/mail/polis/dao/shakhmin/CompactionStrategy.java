@@ -0,0 +1,25 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.util.NavigableMap;
+
+/**
+ * Decides which SSTables to merge in the background.
+ *
+ * <p>Reads resolve a key by probing tables from the newest to the oldest one,
+ * so a merged table takes the greatest serial number of its sources and the sources
+ * must be a contiguous range of serial numbers: otherwise a table left in between
+ * would be shadowed by older data.
+ */
+public interface CompactionStrategy {
+
+    /**
+     * Selects tables to merge.
+     *
+     * @param tables live SSTables by serial number
+     * @return a contiguous range of at least two tables of {@code tables}
+     *         or an empty map if no compaction is needed
+     */
+    @NotNull
+    NavigableMap<Long, Table> select(@NotNull NavigableMap<Long, Table> tables);
+}
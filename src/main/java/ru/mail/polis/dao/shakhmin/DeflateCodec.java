@@ -0,0 +1,74 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Codec} based on the JDK implementation of Deflate.
+ * Deflaters and inflaters are reused per thread since creating them is expensive.
+ */
+public final class DeflateCodec implements Codec {
+    static final int ID = 1;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters =
+            ThreadLocal.withInitial(() -> new Inflater(true));
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Constructs a new Deflate codec.
+     *
+     * @param level compression level from 0 to 9
+     */
+    public DeflateCodec(final int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Wrong compression level: " + level);
+        }
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public boolean compress(@NotNull final ByteBuffer src,
+                            @NotNull final ByteBuffer dst) {
+        final var deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!dst.hasRemaining()) {
+                return false;
+            }
+            deflater.deflate(dst);
+        }
+        return true;
+    }
+
+    @Override
+    public void decompress(@NotNull final ByteBuffer src,
+                           @NotNull final ByteBuffer dst) throws IOException {
+        final var inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src);
+        try {
+            while (dst.hasRemaining()) {
+                if (inflater.inflate(dst) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Unexpected end of compressed block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed block", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mail.polis.dao.shakhmin;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hybrid logical clock: a timestamp is the physical time in milliseconds shifted left
+ * by {@link #LOGICAL_BITS} with a logical counter in the lower bits. The clock never goes back
+ * and never returns the same timestamp twice, the counter orders the events of a millisecond.
+ * Once a node sees a timestamp of another node, see {@link #update(long)}, its own timestamps
+ * are greater, so causally related writes are ordered even if the physical clocks are skewed.
+ * A timestamp more than {@link #MAX_OFFSET_MILLIS} ahead of the local physical time is rejected
+ * rather than adopted, or a single bad timestamp would push the clock ahead for good
+ * and the value written with it could never be overwritten.
+ *
+ * <p>Timestamps written before the storage switched to the hybrid clock are plain milliseconds.
+ * They are less than any hybrid timestamp since 1970-01-25, so they lose to newer writes,
+ * and {@link #physicalMillis(long)} tells the time of both.
+ */
+@ThreadSafe
+public final class HybridClock {
+    static final int LOGICAL_BITS = 16;
+    /** How far the timestamp of another node may be ahead of the local physical time. */
+    static final long MAX_OFFSET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /** The least hybrid timestamp which can't be mistaken for milliseconds. */
+    private static final long FIRST_HYBRID = 1L << (Integer.SIZE - 1 + LOGICAL_BITS);
+
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Returns a timestamp greater than any returned or seen before.
+     */
+    public long now() {
+        final long physical = System.currentTimeMillis() << LOGICAL_BITS;
+        return last.accumulateAndGet(physical, (prev, time) -> Math.max(prev + 1, time));
+    }
+
+    /**
+     * Catches up with a timestamp of another node, so the next timestamp is greater.
+     *
+     * @param timestamp timestamp seen
+     * @throws IllegalArgumentException if the timestamp is not positive, as a tombstone is told
+     *                                  by the sign of its timestamp, or too far ahead, see {@link #isTooFarAhead(long)}
+     */
+    public void update(final long timestamp) {
+        if (timestamp <= 0) {
+            throw new IllegalArgumentException("Not positive timestamp " + timestamp);
+        }
+        if (isTooFarAhead(timestamp)) {
+            throw new IllegalArgumentException("Timestamp " + timestamp + " is too far ahead");
+        }
+        last.accumulateAndGet(timestamp, Math::max);
+    }
+
+    /**
+     * Tells whether the timestamp is more than {@link #MAX_OFFSET_MILLIS} ahead of the local physical time.
+     *
+     * @param timestamp hybrid timestamp or milliseconds
+     * @return true if the timestamp must not be accepted
+     */
+    public static boolean isTooFarAhead(final long timestamp) {
+        return physicalMillis(timestamp) > System.currentTimeMillis() + MAX_OFFSET_MILLIS;
+    }
+
+    /**
+     * Returns the physical time of the timestamp in milliseconds.
+     *
+     * @param timestamp hybrid timestamp or milliseconds
+     * @return milliseconds since the epoch
+     */
+    public static long physicalMillis(final long timestamp) {
+        return timestamp < FIRST_HYBRID ? timestamp : timestamp >>> LOGICAL_BITS;
+    }
+}
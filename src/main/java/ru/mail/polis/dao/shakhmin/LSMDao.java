@@ -1,14 +1,20 @@
 package ru.mail.polis.dao.shakhmin;
 
 import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
-import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.dao.WriteBatch;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -17,24 +23,256 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-public final class LSMDao implements DAO {
+public final class LSMDao implements CellDao {
     private static final Logger log = LoggerFactory.getLogger(LSMDao.class);
 
     private static final String SUFFIX = ".bin";
     private static final String PREFIX = "SSTable_";
     private static final String REGEX = PREFIX + "\\d+" + SUFFIX;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final ByteBuffer LOWEST_KEY = ByteBuffer.allocate(0);
+    private static final long DEFAULT_FLUSH_THRESHOLD = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_TABLES = 64;
+    private static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(1);
+    private static final double TOMBSTONES_RATIO_TO_PURGE = 0.2;
 
     @NotNull private MemTablePool memTable;
-    @NotNull private NavigableMap<Long, Table> ssTables = new ConcurrentSkipListMap<>();
+    @NotNull private final CommitLog commitLog;
+    @NotNull private final Manifest manifest;
+    @NotNull private final AtomicReference<TableSet> ssTables = new AtomicReference<>(TableSet.EMPTY);
     @NotNull private final File flushDir;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @NotNull private final Codec codec;
+    @NotNull private final BlockCache blockCache;
+    @NotNull private final RowCache rowCache;
+    private final boolean fsync;
+    @NotNull private final CompactionStrategy compactionStrategy;
+    @NotNull private final ExecutorService compactor;
+    @Nullable private final RateLimiter compactionRateLimiter;
+    private final int maxTables;
+    private final long tombstoneGracePeriod;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final Object compactionLock = new Object();
+
+    public static class Builder {
+        @NotNull private final File flushDir;
+
+        private long flushThresholdInBytes = DEFAULT_FLUSH_THRESHOLD;
+        private long memTableBudgetInBytes = Long.MAX_VALUE;
+        private int numFlushingThreads = Runtime.getRuntime().availableProcessors() + 1;
+        @NotNull private Codec codec = Codec.NONE;
+        private long blockCacheSizeInBytes;
+        private boolean offHeapBlockCache;
+        private long rowCacheSizeInBytes;
+        private boolean fsync;
+        @NotNull private CompactionStrategy compactionStrategy = new SizeTieredCompactionStrategy();
+        private long compactionBytesPerSecond;
+        private int maxTables = DEFAULT_MAX_TABLES;
+        private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+        private int numOpeningThreads = Runtime.getRuntime().availableProcessors();
+        private boolean offHeapMemTable;
+        private int maxPendingMemTables;
+        private long writeStallTimeoutNanos = Long.MAX_VALUE;
+        private long stampedWriteStallTimeoutNanos = Long.MAX_VALUE;
+        @NotNull private HybridClock clock = new HybridClock();
+
+        public Builder(@NotNull final File flushDir) {
+            this.flushDir = flushDir;
+        }
+
+        public Builder flushThreshold(final long flushThresholdInBytes) {
+            this.flushThresholdInBytes = flushThresholdInBytes;
+            return this;
+        }
+
+        /**
+         * Limits the memory taken by the memory tables, the current one included. When the tables
+         * pending to be flushed take most of the budget, the current one is flushed earlier
+         * than it reaches the flush threshold.
+         *
+         * @param memTableBudgetInBytes budget in bytes, unlimited by default
+         * @return this builder
+         */
+        public Builder memTableBudget(final long memTableBudgetInBytes) {
+            this.memTableBudgetInBytes = memTableBudgetInBytes;
+            return this;
+        }
+
+        public Builder flushingThreads(final int numFlushingThreads) {
+            this.numFlushingThreads = numFlushingThreads;
+            return this;
+        }
+
+        public Builder codec(@NotNull final Codec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder blockCacheSize(final long blockCacheSizeInBytes) {
+            this.blockCacheSizeInBytes = blockCacheSizeInBytes;
+            return this;
+        }
+
+        public Builder offHeapBlockCache(final boolean offHeapBlockCache) {
+            this.offHeapBlockCache = offHeapBlockCache;
+            return this;
+        }
+
+        public Builder rowCacheSize(final long rowCacheSizeInBytes) {
+            this.rowCacheSizeInBytes = rowCacheSizeInBytes;
+            return this;
+        }
+
+        public Builder fsync(final boolean fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        public Builder compactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+            this.compactionStrategy = compactionStrategy;
+            return this;
+        }
+
+        /**
+         * Limits the rate of background compactions.
+         *
+         * @param compactionBytesPerSecond rows merged per second in bytes, 0 means unlimited
+         * @return this builder
+         */
+        public Builder compactionRateLimit(final long compactionBytesPerSecond) {
+            this.compactionBytesPerSecond = compactionBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the number of SSTables above which the newest tables are merged
+         * even if the compaction strategy selects nothing. Tables flushed after one
+         * which is still being flushed are neither counted nor merged until it is loaded.
+         *
+         * @param maxTables maximum number of SSTables
+         * @return this builder
+         */
+        public Builder maxTables(final int maxTables) {
+            if (maxTables < 1) {
+                throw new IllegalArgumentException("Maximum number of tables must be positive");
+            }
+            this.maxTables = maxTables;
+            return this;
+        }
+
+        /**
+         * Sets how long tombstones are kept before compaction may purge them,
+         * e.g. to let replicas learn about removals.
+         *
+         * @param tombstoneGracePeriod grace period
+         * @param unit unit of the grace period
+         * @return this builder
+         */
+        public Builder tombstoneGracePeriod(final long tombstoneGracePeriod,
+                                            @NotNull final TimeUnit unit) {
+            this.tombstoneGracePeriod = unit.toMillis(tombstoneGracePeriod);
+            return this;
+        }
+
+        /**
+         * Limits the number of memory tables waiting to be flushed, writes are slowed down
+         * when the limit is reached. By default it is the number of flushing threads plus one.
+         *
+         * @param maxPendingMemTables max number of pending memory tables
+         * @return this builder
+         */
+        public Builder maxPendingMemTables(final int maxPendingMemTables) {
+            this.maxPendingMemTables = maxPendingMemTables;
+            return this;
+        }
+
+        /**
+         * Sets how long a write may stall waiting for a flush before it fails with
+         * {@link WriteStallException}, by default writes wait as long as it takes.
+         *
+         * @param writeStallTimeout timeout
+         * @param unit unit of the timeout
+         * @return this builder
+         */
+        public Builder writeStallTimeout(final long writeStallTimeout,
+                                         @NotNull final TimeUnit unit) {
+            this.writeStallTimeoutNanos = unit.toNanos(writeStallTimeout);
+            return this;
+        }
+
+        /**
+         * Sets how long a write with a given timestamp may stall, see {@link CellDao}. Such writes
+         * come from the service, which can't afford to park a worker thread for long, so they are
+         * rejected sooner than the others. The timeout is never longer than the write stall timeout.
+         *
+         * @param stampedWriteStallTimeout timeout
+         * @param unit unit of the timeout
+         * @return this builder
+         */
+        public Builder stampedWriteStallTimeout(final long stampedWriteStallTimeout,
+                                                @NotNull final TimeUnit unit) {
+            this.stampedWriteStallTimeoutNanos = unit.toNanos(stampedWriteStallTimeout);
+            return this;
+        }
+
+        /**
+         * Sets the number of threads to open SSTables with on startup.
+         *
+         * @param numOpeningThreads number of threads
+         * @return this builder
+         */
+        public Builder openingThreads(final int numOpeningThreads) {
+            this.numOpeningThreads = numOpeningThreads;
+            return this;
+        }
+
+        /**
+         * Sets whether memory tables keep rows in direct memory instead of the heap,
+         * see {@link OffHeapMemTable}.
+         *
+         * @param offHeapMemTable whether to keep memory tables off-heap
+         * @return this builder
+         */
+        public Builder offHeapMemTable(final boolean offHeapMemTable) {
+            this.offHeapMemTable = offHeapMemTable;
+            return this;
+        }
+
+        /**
+         * Sets the clock to stamp writes with, by default the storage has a clock of its own.
+         *
+         * @param clock clock
+         * @return this builder
+         */
+        public Builder clock(@NotNull final HybridClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public LSMDao build() throws IOException {
+            return new LSMDao(this);
+        }
+    }
 
     class FlushingTask implements Runnable {
 
@@ -45,18 +283,16 @@ public final class LSMDao implements DAO {
                     tableToFlush = memTable.takeToFlush();
                     final long serialNumber = tableToFlush.getSerialNumber();
                     final boolean poisonReceived = tableToFlush.isPoisonPill();
-                    final boolean isCompactTable = tableToFlush.isCompactTable();
                     final var table = tableToFlush.getTable();
-                    if (poisonReceived || isCompactTable) {
+                    if (poisonReceived) {
                         flush(serialNumber, table);
                     } else {
                         flushAndLoad(serialNumber, table);
                     }
-                    if (isCompactTable) {
-                        completeCompaction(serialNumber);
-                        memTable.compacted(serialNumber);
-                    } else {
-                        memTable.flushed(serialNumber);
+                    commitLog.delete(serialNumber);
+                    memTable.flushed(serialNumber);
+                    if (!poisonReceived) {
+                        scheduleCompaction();
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
@@ -68,50 +304,254 @@ public final class LSMDao implements DAO {
 
     public LSMDao(@NotNull final File flushDir,
                   final long flushThresholdInBytes) throws IOException {
-        this(flushDir, flushThresholdInBytes, Runtime.getRuntime().availableProcessors() + 1);
+        this(new Builder(flushDir).flushThreshold(flushThresholdInBytes));
+    }
+
+    public LSMDao(@NotNull final File flushDir,
+                  final long flushThresholdInBytes,
+                  final int numFlushingThreads) throws IOException {
+        this(new Builder(flushDir)
+                .flushThreshold(flushThresholdInBytes)
+                .flushingThreads(numFlushingThreads));
     }
 
     /**
      * Constructs a new DAO based on LSM tree.
      *
-     * @param flushDir local disk folder to persist the data to
-     * @param flushThresholdInBytes threshold of size of Memtable
-     * @param numFlushingThreads number of threads to flush tables
+     * @param builder configuration of the DAO
      * @throws IOException if an I/O error is thrown by a visitor method
      */
-    public LSMDao(@NotNull final File flushDir,
-                  final long flushThresholdInBytes,
-                  final int numFlushingThreads) throws IOException {
-        this.flushDir = flushDir;
-        final var serialNumberSStable = new AtomicLong();
-        Files.walkFileTree(flushDir.toPath(), new SimpleFileVisitor<>() {
+    private LSMDao(@NotNull final Builder builder) throws IOException {
+        this.flushDir = builder.flushDir;
+        this.codec = builder.codec;
+        this.fsync = builder.fsync;
+        this.compactionStrategy = builder.compactionStrategy;
+        this.compactionRateLimiter = builder.compactionBytesPerSecond > 0
+                ? RateLimiter.create(builder.compactionBytesPerSecond)
+                : null;
+        this.maxTables = builder.maxTables;
+        this.tombstoneGracePeriod = builder.tombstoneGracePeriod;
+        this.blockCache = new BlockCache(builder.blockCacheSizeInBytes, builder.offHeapBlockCache);
+        this.rowCache = new RowCache(builder.rowCacheSizeInBytes);
+        final var dir = flushDir.toPath();
+        final var total = Stopwatch.createStarted();
+        final var stage = Stopwatch.createStarted();
+        final Map<Long, Path> files = new HashMap<>();
+        final NavigableSet<Long> segments = new TreeSet<>();
+        scan(dir, files, segments);
+        final long scanMillis = stage.elapsed(TimeUnit.MILLISECONDS);
+        stage.reset().start();
+        final NavigableMap<Long, Long> initialTables = new TreeMap<>();
+        if (!Manifest.exists(dir)) {
+            // Storage of an older version, tables are named by their serial numbers.
+            // A table with a commit log segment may be partially written, it is rebuilt from the log
+            for (final long serialNumber : files.keySet()) {
+                if (!segments.contains(serialNumber)) {
+                    initialTables.put(serialNumber, serialNumber);
+                }
+            }
+        }
+        this.manifest = new Manifest(dir, initialTables, fsync);
+        final long manifestMillis = stage.elapsed(TimeUnit.MILLISECONDS);
+        stage.reset().start();
+        final var liveTables = openTables(files, builder.numOpeningThreads);
+        final long openMillis = stage.elapsed(TimeUnit.MILLISECONDS);
+        stage.reset().start();
+        final long serialNumber = replaySegments(liveTables, segments);
+        log.info("Storage opened in {} ms: scan = {} ms, manifest = {} ms, {} tables = {} ms, {} segments = {} ms",
+                total.elapsed(TimeUnit.MILLISECONDS), scanMillis, manifestMillis,
+                liveTables.size(), openMillis, segments.size(), stage.elapsed(TimeUnit.MILLISECONDS));
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("compactor-%d")
+                        .setPriority(Thread.MIN_PRIORITY)
+                        .setDaemon(true)
+                        .build());
+        this.commitLog = new CommitLog(dir, serialNumber, fsync);
+        log.info("Number of threads to flush = {}, codec = {}, off-heap memory tables = {}",
+                builder.numFlushingThreads, codec.id(), builder.offHeapMemTable);
+        this.memTable = new MemTablePool.Builder(new FlushingTask(), commitLog)
+                .flushThreshold(builder.flushThresholdInBytes)
+                .memoryBudget(builder.memTableBudgetInBytes)
+                .startSerialNumber(serialNumber)
+                .flushingThreads(builder.numFlushingThreads)
+                .maxPendingTables(builder.maxPendingMemTables)
+                .writeStallTimeout(builder.writeStallTimeoutNanos, TimeUnit.NANOSECONDS)
+                .stampedWriteStallTimeout(builder.stampedWriteStallTimeoutNanos, TimeUnit.NANOSECONDS)
+                .tableFactory(builder.offHeapMemTable ? OffHeapMemTable::new : MemTable::new)
+                .clock(builder.clock)
+                .build();
+    }
+
+    /**
+     * Collects SSTable files by their ids and commit log segments by their serial numbers,
+     * deleting temporary files.
+     */
+    private static void scan(@NotNull final Path dir,
+                             @NotNull final Map<Long, Path> files,
+                             @NotNull final NavigableSet<Long> segments) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(
                     final Path path,
                     final BasicFileAttributes attrs) throws IOException {
-                final var file = path.toFile();
-                if (file.getName().matches(REGEX)) {
-                    final var fileName = Iterables.get(Splitter.on(".").split(file.getName()), 0);
-                    final long serialNumber = Long.parseLong(Iterables.get(Splitter.on('_').split(fileName), 1));
-                    serialNumberSStable.set(
-                            Math.max(serialNumberSStable.get(), serialNumber + 1L));
-                    ssTables.put(serialNumber, new SSTable(file.toPath(), serialNumber));
+                final var name = path.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Leftover of an interrupted manifest rewrite or of an older version
+                    Files.delete(path);
+                } else if (name.matches(REGEX)) {
+                    files.put(parseNumber(name), path);
+                } else if (name.matches(CommitLog.REGEX)) {
+                    segments.add(parseNumber(name));
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
-        log.info("Number of threads to flush = {}", numFlushingThreads);
-        this.memTable = new MemTablePool(
-                flushThresholdInBytes,
-                serialNumberSStable.get(),
-                numFlushingThreads,
-                new FlushingTask());
+    }
+
+    /**
+     * Deletes the files which are not in the manifest and opens the tables of the manifest.
+     * Tables are opened in parallel, as there may be hundreds of them.
+     *
+     * @return file ids of the live tables by their serial numbers
+     */
+    @NotNull
+    private NavigableMap<Long, Long> openTables(@NotNull final Map<Long, Path> files,
+                                                final int threads) throws IOException {
+        final var liveTables = manifest.tables();
+        final var liveFiles = new HashSet<>(liveTables.values());
+        for (final var file : files.entrySet()) {
+            if (!liveFiles.contains(file.getKey())) {
+                // Output of an interrupted flush or compaction, or a source of a finished compaction
+                log.info("Deleting {} which is not in the manifest", file.getValue());
+                Files.delete(file.getValue());
+            }
+        }
+        final var pool = new ForkJoinPool(threads);
+        try {
+            final List<ForkJoinTask<SSTable>> tasks = new ArrayList<>(liveTables.size());
+            for (final var table : liveTables.entrySet()) {
+                tasks.add(pool.submit(
+                        () -> new SSTable(tablePath(table.getValue()), table.getKey(), codec, blockCache)));
+            }
+            for (final var task : tasks) {
+                final var ssTable = task.get();
+                ssTables.updateAndGet(set -> set.add(ssTable));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening tables", e);
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IOException("Can't open tables", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return liveTables;
+    }
+
+    /**
+     * Flushes the rows of the commit log segments which are not flushed yet.
+     *
+     * @return serial number of the memory table to start with
+     */
+    private long replaySegments(@NotNull final NavigableMap<Long, Long> liveTables,
+                                @NotNull final NavigableSet<Long> segments) throws IOException {
+        long serialNumber = liveTables.isEmpty() ? 0L : liveTables.lastKey() + 1;
+        for (final long segment : segments) {
+            serialNumber = Math.max(serialNumber, segment + 1);
+            if (liveTables.containsKey(segment)) {
+                // The table is flushed, but the storage stopped before the segment was deleted
+                Files.delete(CommitLog.segment(flushDir.toPath(), segment));
+            } else {
+                replay(segment);
+            }
+        }
+        return serialNumber;
+    }
+
+    private static long parseNumber(@NotNull final String fileName) {
+        final var name = Iterables.get(Splitter.on(".").split(fileName), 0);
+        return Long.parseLong(Iterables.get(Splitter.on('_').split(name), 1));
+    }
+
+    /**
+     * Flushes the rows of a commit log segment left by a crashed storage.
+     */
+    private void replay(final long serialNumber) throws IOException {
+        final var segment = CommitLog.segment(flushDir.toPath(), serialNumber);
+        final var table = CommitLog.replay(segment);
+        final var rows = table.iterator(LOWEST_KEY);
+        if (rows.hasNext()) {
+            log.info("Replaying commit log of generation [{}]", serialNumber);
+            flushAndLoad(serialNumber, rows);
+        }
+        Files.delete(segment);
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final var collapsed = rowsIterator(from);
+        return records(rowsIterator(from));
+    }
+
+    /**
+     * Takes a snapshot of the memory tables and the SSTables, see {@link MemTablePool#snapshot}.
+     * Writes go on while the snapshot is open, but the memory tables it sees stay in memory
+     * until it is closed.
+     *
+     * @return snapshot to be closed
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final var tables = memTable.snapshot(() -> ssTables.get().tables());
+        return new Snapshot() {
+            @NotNull
+            @Override
+            public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+                return records(tables.iterator(from));
+            }
+
+            @NotNull
+            @Override
+            public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                                    @Nullable final ByteBuffer to) throws IOException {
+                return records(downTo(tables.descendingIterator(to), from));
+            }
+
+            @Override
+            public void close() {
+                tables.close();
+            }
+        };
+    }
+
+    /**
+     * Reads the tables backwards from the key before {@code to}, so the tail of a range
+     * takes time proportional to the number of records read rather than to the size of the range.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+        final var iterators = Table.joinDescendingIterators(memTable, ssTables.get().tables(), to);
+        return records(downTo(Table.reduceDescendingIterators(iterators), from));
+    }
+
+    /**
+     * Stops descending rows at the first key less than {@code from}, before tombstones are skipped,
+     * so the iteration doesn't go on through the tombstones below the range.
+     */
+    @NotNull
+    private static Iterator<Row> downTo(@NotNull final Iterator<Row> descending,
+                                        @NotNull final ByteBuffer from) {
+        return Iters.takeWhile(descending, r -> r.getKey().compareTo(from) >= 0);
+    }
+
+    @NotNull
+    private static Iterator<Record> records(@NotNull final Iterator<Row> collapsed) {
         final var alive = Iterators.filter(collapsed, r -> !r.getCell().isRemoved());
         return Iterators.transform(alive,
                 r -> Record.of(r.getKey(), r.getCell().getData()));
@@ -119,107 +559,320 @@ public final class LSMDao implements DAO {
 
     @NotNull
     private Iterator<Row> rowsIterator(@NotNull final ByteBuffer from) throws IOException {
-        final var iterators = Table.joinIterators(memTable, ssTables, from);
+        final var iterators = Table.joinIterators(memTable, ssTables.get().tables(), from);
         return Table.reduceIterators(iterators);
     }
 
     /**
-     *  Get cell by key.
+     *  Get cell by key. The row cache is checked first, on a miss the tables are probed
+     *  from the newest to the oldest one for the cell (value or tombstone) with the newest timestamp.
+     *  Writes keep the timestamps they came with, e.g. a replica may get a write late,
+     *  so the first hit isn't necessarily the newest cell, but a table whose cells are all
+     *  older than the one found is skipped.
      *
      * @param key key
      * @return null if cell is not found and cell otherwise
      * @throws IOException if an I/O error occurs
      */
     @Nullable
+    @Override
     public Cell getCell(@NotNull final ByteBuffer key) throws IOException {
-        final var iter = rowsIterator(key);
-        if (!iter.hasNext()) {
-            return null;
+        return rowCache.get(key, this::lookup);
+    }
+
+    @Nullable
+    private Cell lookup(@NotNull final ByteBuffer key) throws IOException {
+        var row = memTable.get(key);
+        for (final var table : ssTables.get().tables().descendingMap().values()) {
+            if (row == null || table.maxTimestamp() > Math.abs(row.getCell().getTimestamp())) {
+                row = Table.newer(row, table.get(key));
+            }
         }
-        final var row = iter.next();
-        if (!row.getKey().equals(key)) {
-            return null;
+        return row == null ? null : row.getCell();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final var cell = getCell(key);
+        if (cell == null || cell.isRemoved()) {
+            throw new NoSuchElementLiteException("Not found");
         }
-        return row.getCell();
+        return cell.getData();
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value) throws IOException {
         memTable.upsert(key, value);
+        rowCache.invalidate(key);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
         memTable.remove(key);
+        rowCache.invalidate(key);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp) throws IOException {
+        memTable.upsert(key, value, timestamp);
+        rowCache.invalidate(key);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       final long timestamp) throws IOException {
+        memTable.remove(key, timestamp);
+        rowCache.invalidate(key);
+    }
+
+    /**
+     * Applies the batch to the memory table at once, see {@link MemTablePool#apply(WriteBatch)}.
+     *
+     * @param batch writes
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void applyBatch(@NotNull final WriteBatch batch) throws IOException {
+        memTable.apply(batch);
+        invalidate(batch);
+    }
+
+    @Override
+    public void applyBatch(@NotNull final WriteBatch batch,
+                           final long timestamp) throws IOException {
+        memTable.apply(batch, timestamp);
+        invalidate(batch);
+    }
+
+    private void invalidate(@NotNull final WriteBatch batch) {
+        for (final var write : batch.writes()) {
+            rowCache.invalidate(write.getKey());
+        }
+    }
+
+    @NotNull
+    public BlockCache blockCache() {
+        return blockCache;
     }
 
     @Override
     public void close() throws IOException {
         memTable.close();
+        commitLog.close();
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                compactor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        manifest.close();
+        log.info("Block cache: hits = {}, misses = {}, size = {}",
+                blockCache.hitCount(), blockCache.missCount(), blockCache.sizeInBytes());
+        log.info("Row cache: hits = {}, misses = {}", rowCache.hitCount(), rowCache.missCount());
     }
 
-    private void flush(final long serialNumber,
+    /**
+     * Writes the rows to a new file and records it in the manifest.
+     *
+     * @return path of the written table
+     */
+    @NotNull
+    private Path flush(final long serialNumber,
                        @NotNull final Iterator<Row> rowsIterator) throws IOException {
         log.info("Flushing generation [{}]...", serialNumber);
-        SSTable.flush(
-                Path.of(flushDir.getAbsolutePath(), PREFIX + serialNumber + SUFFIX),
-                rowsIterator);
+        final long fileId = manifest.nextFileId();
+        final var path = tablePath(fileId);
+        SSTable.flush(path, rowsIterator, codec, fsync);
+        manifest.add(serialNumber, fileId);
         log.info("Flushing generation [{}] done", serialNumber);
+        return path;
     }
 
     private void flushAndLoad(final long serialNumber,
                               @NotNull final Iterator<Row> rowsIterator) throws IOException {
-        log.info("Flushing generation [{}]...", serialNumber);
-        final var path = Path.of(flushDir.getAbsolutePath(), PREFIX + serialNumber + SUFFIX);
-        SSTable.flush(path, rowsIterator);
-        ssTables.put(serialNumber,
-                new SSTable(
-                        path.toAbsolutePath(),
-                        serialNumber));
-        log.info("Flushing generation [{}] done", serialNumber);
+        final var ssTable = new SSTable(
+                flush(serialNumber, rowsIterator),
+                serialNumber,
+                codec,
+                blockCache);
+        ssTables.updateAndGet(set -> set.add(ssTable));
     }
 
+    /**
+     * Merges all the SSTables into one, except the ones flushed after a table which is
+     * still being flushed, see {@link #flushedTables()}. The memory table is not touched,
+     * so writes go on while the compaction runs.
+     *
+     * @throws IOException if an I/O error occurs
+     */
     @Override
     public void compact() throws IOException {
-        log.info("Need compaction");
-        memTable.compact(ssTables);
+        synchronized (compactionLock) {
+            compact(flushedTables(), null);
+        }
     }
 
-    private void completeCompaction(final long serialNumber) throws IOException {
-        log.info("Compaction is done. Serial number of compact table is [{}]", serialNumber);
-        lock.writeLock().lock();
-        try {
-            ssTables = new ConcurrentSkipListMap<>();
-        } finally {
-            lock.writeLock().unlock();
+    /**
+     * Returns the SSTables with serial numbers below the lowest one still being flushed.
+     * Flushes complete out of order, and a merged table takes the greatest serial number
+     * of its run, so a run spanning a table still being flushed would make that table
+     * older than the rows merged from the tables before it once it is loaded.
+     */
+    @NotNull
+    private NavigableMap<Long, Table> flushedTables() {
+        // The bound only grows, so it is read first to cover every table loaded below it
+        final long bound = memTable.lowestUnflushedSerialNumber();
+        return ssTables.get().tables().headMap(bound, false);
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(this::compactInBackground);
         }
-        cleanDirectory(serialNumber);
     }
 
-    private void cleanDirectory(final long serialNumber) throws IOException {
-        lock.writeLock().lock();
+    /**
+     * Merges the tables selected by the compaction strategy until it has nothing to select
+     * and the number of tables is within the limit. Runs on a low priority thread and
+     * is throttled by the rate limiter, so it doesn't starve foreground requests.
+     */
+    private void compactInBackground() {
+        compactionScheduled.set(false);
         try {
-            Files.walkFileTree(flushDir.toPath(), new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult visitFile(
-                        final Path path,
-                        final BasicFileAttributes attrs) throws IOException {
-                    final File file = path.toFile();
-                    if (file.getName().matches(REGEX)) {
-                        final var fileName = Iterables.get(Splitter.on(".").split(file.getName()), 0);
-                        final long sn = Long.parseLong(Iterables.get(Splitter.on('_').split(fileName), 1));
-                        if (sn >= serialNumber) {
-                            ssTables.put(sn, new SSTable(file.toPath(), sn));
-                            return FileVisitResult.CONTINUE;
-                        }
+            synchronized (compactionLock) {
+                // The oldest table is rewritten alone at most once per round, as tombstones
+                // keep expiring and it could be rewritten over and over again otherwise
+                boolean rewriteAllowed = true;
+                while (!compactor.isShutdown()) {
+                    final var run = selectForCompaction(rewriteAllowed);
+                    if (run.isEmpty()) {
+                        return;
                     }
-                    Files.delete(path);
-                    return FileVisitResult.CONTINUE;
+                    if (run.size() == 1) {
+                        rewriteAllowed = false;
+                    }
+                    compact(run, compactionRateLimiter);
                 }
+            }
+        } catch (IOException e) {
+            log.error("Background compaction failed", e);
+        }
+    }
+
+    @NotNull
+    private NavigableMap<Long, Table> selectForCompaction(final boolean rewriteAllowed) {
+        final var tables = flushedTables();
+        final var run = compactionStrategy.select(tables);
+        if (run.size() >= 2) {
+            return run;
+        }
+        final int excess = tables.size() - maxTables;
+        if (excess > 0) {
+            // Read fan-out is out of bounds, merge the newest flushed tables to get back within the limit
+            final long first = Iterables.get(tables.descendingKeySet(), excess);
+            return tables.tailMap(first, true);
+        }
+        final var oldest = tables.firstEntry();
+        if (rewriteAllowed && oldest != null && oldest.getValue() instanceof SSTable) {
+            // Rewrite the oldest table alone if it is full of tombstones which can be purged
+            final var table = (SSTable) oldest.getValue();
+            if (table.tombstonesNumber() > table.rowsNumber() * TOMBSTONES_RATIO_TO_PURGE
+                    && hasPurgeableTombstones(table)) {
+                return tables.headMap(oldest.getKey(), true);
+            }
+        }
+        return Collections.emptyNavigableMap();
+    }
+
+    private boolean hasPurgeableTombstones(@NotNull final Table table) {
+        return !(table instanceof SSTable)
+                || HybridClock.physicalMillis(((SSTable) table).oldestTombstoneTimestamp()) < purgeBefore();
+    }
+
+    /**
+     * Returns the time in milliseconds before which tombstones are out of the grace period,
+     * see {@link HybridClock#physicalMillis(long)}.
+     */
+    private long purgeBefore() {
+        return System.currentTimeMillis() - tombstoneGracePeriod;
+    }
+
+    /**
+     * Merges a contiguous range of tables into a table with the greatest serial number
+     * of the range. The merged table is written to a new file and recorded in the manifest
+     * in place of the whole range with a single edit, then a new {@link TableSet} is
+     * published the same way, so readers never miss a row nor block.
+     *
+     * <p>A tombstone out of the grace period is dropped if it is older than every cell
+     * of the tables outside the range, both flushed and in memory: writes keep the timestamps
+     * the coordinators assigned, so a newer table may still hold an older cell of the key
+     * for the tombstone to shadow. A write with a timestamp older than the grace period
+     * arriving during the merge is not shadowed by a tombstone dropped in the meantime.
+     *
+     * @param run tables to merge
+     * @param rateLimiter limits merged bytes per second if not null
+     */
+    private void compact(@NotNull final NavigableMap<Long, Table> run,
+                         @Nullable final RateLimiter rateLimiter) throws IOException {
+        if (run.isEmpty() || run.size() == 1 && !hasPurgeableTombstones(run.firstEntry().getValue())) {
+            return;
+        }
+        final long serialNumber = run.lastKey();
+        final long purgeBelow = minTimestampOutside(run);
+        log.info("Compacting generations [{}..{}] of {} tables, purge tombstones older than {}...",
+                run.firstKey(), serialNumber, run.size(), purgeBelow);
+        final List<Iterator<Row>> iterators = new ArrayList<>(run.size());
+        for (final var table : run.descendingMap().values()) {
+            iterators.add(table.iterator(LOWEST_KEY));
+        }
+        var rows = Table.reduceIterators(iterators);
+        final long purgeBefore = purgeBefore();
+        rows = Iterators.filter(rows,
+                row -> !row.getCell().isRemoved()
+                        || -row.getCell().getTimestamp() >= purgeBelow
+                        || HybridClock.physicalMillis(-row.getCell().getTimestamp()) >= purgeBefore);
+        if (rateLimiter != null) {
+            rows = Iterators.transform(rows, row -> {
+                rateLimiter.acquire(Math.max(1, row.getKey().remaining() + row.getCell().getData().remaining()));
+                return row;
             });
-        } finally {
-            lock.writeLock().unlock();
         }
+        final var fileIds = manifest.tables();
+        final long fileId = manifest.nextFileId();
+        final var path = tablePath(fileId);
+        SSTable.flush(path, rows, codec, fsync);
+        final var merged = new SSTable(path, serialNumber, codec, blockCache);
+        manifest.replace(run.keySet(), serialNumber, fileId);
+        ssTables.updateAndGet(set -> set.replace(run, merged));
+        // Readers of the previous set still hold the files mapped, so they can be deleted right away
+        for (final long compacted : run.keySet()) {
+            Files.delete(tablePath(fileIds.get(compacted)));
+        }
+        log.info("Compacting generations [{}..{}] done", run.firstKey(), serialNumber);
+    }
+
+    /**
+     * Returns the oldest timestamp of the memory tables and the SSTables outside the run.
+     */
+    private long minTimestampOutside(@NotNull final NavigableMap<Long, Table> run) {
+        // Memory tables are read first, as a table leaves the pool only after it is loaded
+        long min = memTable.minTimestamp();
+        for (final var entry : ssTables.get().tables().entrySet()) {
+            if (!run.containsKey(entry.getKey())) {
+                min = Math.min(min, entry.getValue().minTimestamp());
+            }
+        }
+        return min;
+    }
+
+    @NotNull
+    private Path tablePath(final long fileId) {
+        return Path.of(flushDir.getAbsolutePath(), PREFIX + fileId + SUFFIX);
     }
 }
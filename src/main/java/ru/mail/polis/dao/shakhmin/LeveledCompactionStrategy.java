@@ -0,0 +1,85 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.util.Collections;
+import java.util.NavigableMap;
+
+/**
+ * Keeps tables in levels of exponentially growing size.
+ *
+ * <p>A table of at most {@code baseSize} bytes is on level 0, a larger one
+ * is on level {@code 1 + log(size / baseSize) / log(fanout)}. Going from the oldest table
+ * to the newest one, the levels must strictly decrease, except for at most
+ * {@code level0Limit} tables on level 0. A table that reaches the level of its
+ * older neighbour is merged into it, and level 0 tables are merged together once
+ * there are too many of them. The number of tables, i.e. the read amplification,
+ * is thus bounded by the number of levels, and a row is rewritten
+ * about {@code fanout} times per level.
+ *
+ * <p>Tables are not partitioned by key ranges as the read path orders tables
+ * by serial numbers, so a level consists of a single table.
+ */
+public final class LeveledCompactionStrategy implements CompactionStrategy {
+    private static final int DEFAULT_FANOUT = 10;
+    private static final int DEFAULT_LEVEL0_LIMIT = 4;
+
+    private final long baseSize;
+    private final int fanout;
+    private final int level0Limit;
+
+    public LeveledCompactionStrategy(final long baseSize) {
+        this(baseSize, DEFAULT_FANOUT, DEFAULT_LEVEL0_LIMIT);
+    }
+
+    /**
+     * Constructs a new strategy.
+     *
+     * @param baseSize maximum size of a level 0 table
+     * @param fanout ratio of sizes of neighbouring levels
+     * @param level0Limit maximum number of level 0 tables
+     */
+    public LeveledCompactionStrategy(final long baseSize,
+                                     final int fanout,
+                                     final int level0Limit) {
+        if (baseSize <= 0 || fanout < 2 || level0Limit < 1) {
+            throw new IllegalArgumentException("Wrong leveled compaction parameters");
+        }
+        this.baseSize = baseSize;
+        this.fanout = fanout;
+        this.level0Limit = level0Limit;
+    }
+
+    int level(final long size) {
+        if (size <= baseSize) {
+            return 0;
+        }
+        return 1 + (int) (Math.log((double) size / baseSize) / Math.log(fanout));
+    }
+
+    @NotNull
+    @Override
+    public NavigableMap<Long, Table> select(@NotNull final NavigableMap<Long, Table> tables) {
+        Table previous = null;
+        Long level0First = null;
+        int level0Count = 0;
+        for (final var table : tables.values()) {
+            final int level = level(table.sizeInBytes());
+            if (previous != null && level > 0 && level >= level(previous.sizeInBytes())) {
+                return tables.subMap(previous.serialNumber(), true, table.serialNumber(), true);
+            }
+            if (level == 0) {
+                if (level0Count == 0) {
+                    level0First = table.serialNumber();
+                }
+                level0Count++;
+            } else {
+                level0Count = 0;
+            }
+            previous = table;
+        }
+        if (level0Count > level0Limit) {
+            return tables.tailMap(level0First, true);
+        }
+        return Collections.emptyNavigableMap();
+    }
+}
@@ -0,0 +1,229 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes of the set of live SSTables.
+ *
+ * <p>Each SSTable file is named by a unique file id, which is not the serial number
+ * of the table: the result of a compaction keeps the greatest serial number of the merged
+ * tables, but is written to a new file. A table is live only after its addition is
+ * recorded, and a compaction records the addition of the merged table and the removal
+ * of its sources as a single edit. So a crash at any point leaves either the sources or
+ * the merged table live, never both, and the files not mentioned in the manifest
+ * are just garbage to delete.
+ *
+ * <p>An edit is {@code [size (int)][crc32 (int)][next file id (long)][removed number (int)]
+ * [removed serial numbers (long)...][added number (int)][added serial number and file id (long, long)...]},
+ * where size and checksum cover everything after the checksum. Replay stops at the first
+ * torn or corrupted edit. The manifest is rewritten as a single edit on every open
+ * and whenever too many edits are appended.
+ */
+final class Manifest implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    static final String NAME = "MANIFEST";
+    private static final String TMP_NAME = NAME + ".tmp";
+    private static final int RECORD_HEADER = Integer.BYTES * 2;
+    private static final int MAX_EDITS = 1024;
+
+    @NotNull private final Path dir;
+    private final boolean fsync;
+    @NotNull private final NavigableMap<Long, Long> tables;
+    @NotNull private FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private long nextFileId;
+    private int edits;
+
+    /**
+     * Opens the manifest of the directory or creates a new one if there is none.
+     *
+     * @param dir directory of the storage
+     * @param initialTables file ids by serial numbers of the live tables if the manifest doesn't exist
+     * @param fsync whether to force the edits to the storage device
+     * @throws IOException if an I/O error occurs
+     */
+    Manifest(@NotNull final Path dir,
+             @NotNull final NavigableMap<Long, Long> initialTables,
+             final boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        final var path = dir.resolve(NAME);
+        if (Files.exists(path)) {
+            this.tables = new TreeMap<>();
+            replay(path);
+        } else {
+            this.tables = new TreeMap<>(initialTables);
+            for (final long fileId : initialTables.values()) {
+                nextFileId = Math.max(nextFileId, fileId + 1);
+            }
+        }
+        this.channel = rewrite();
+    }
+
+    static boolean exists(@NotNull final Path dir) {
+        return Files.exists(dir.resolve(NAME));
+    }
+
+    /**
+     * Returns file ids of the live tables by their serial numbers.
+     */
+    @NotNull
+    synchronized NavigableMap<Long, Long> tables() {
+        return Collections.unmodifiableNavigableMap(new TreeMap<>(tables));
+    }
+
+    /**
+     * Reserves an id for a new file. Files which are not in the manifest are deleted
+     * on open, so an id is never handed out while a file with it exists.
+     *
+     * @return file id
+     */
+    synchronized long nextFileId() {
+        return nextFileId++;
+    }
+
+    /**
+     * Records a flushed table.
+     *
+     * @param serialNumber serial number of the table
+     * @param fileId id of its file
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void add(final long serialNumber,
+                          final long fileId) throws IOException {
+        append(Collections.emptyList(), Collections.singletonMap(serialNumber, fileId));
+    }
+
+    /**
+     * Atomically records a merged table in place of the tables it has been merged from.
+     *
+     * @param removed serial numbers of the merged tables
+     * @param serialNumber serial number of the merged table
+     * @param fileId id of its file
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void replace(@NotNull final Collection<Long> removed,
+                              final long serialNumber,
+                              final long fileId) throws IOException {
+        append(removed, Collections.singletonMap(serialNumber, fileId));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void append(@NotNull final Collection<Long> removed,
+                        @NotNull final Map<Long, Long> added) throws IOException {
+        tables.keySet().removeAll(removed);
+        tables.putAll(added);
+        if (++edits > MAX_EDITS) {
+            channel.close();
+            channel = rewrite();
+            return;
+        }
+        write(channel, removed, added);
+    }
+
+    /**
+     * Writes the current state as a single edit to a new file and replaces the manifest with it.
+     *
+     * @return channel to append the following edits to
+     */
+    @NotNull
+    private FileChannel rewrite() throws IOException {
+        final var tmp = dir.resolve(TMP_NAME);
+        final var channel = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            write(channel, Collections.emptyList(), tables);
+            channel.force(true);
+            Files.move(tmp, dir.resolve(NAME), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        edits = 0;
+        return channel;
+    }
+
+    private void write(@NotNull final FileChannel channel,
+                       @NotNull final Collection<Long> removed,
+                       @NotNull final Map<Long, Long> added) throws IOException {
+        final int size = Long.BYTES
+                + Integer.BYTES + removed.size() * Long.BYTES
+                + Integer.BYTES + added.size() * Long.BYTES * 2;
+        final var record = ByteBuffer.allocate(RECORD_HEADER + size)
+                .putInt(size)
+                .putInt(0)
+                .putLong(nextFileId)
+                .putInt(removed.size());
+        for (final long serialNumber : removed) {
+            record.putLong(serialNumber);
+        }
+        record.putInt(added.size());
+        for (final var table : added.entrySet()) {
+            record.putLong(table.getKey()).putLong(table.getValue());
+        }
+        crc.reset();
+        crc.update(record.array(), RECORD_HEADER, size);
+        record.putInt(Integer.BYTES, (int) crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+    }
+
+    private void replay(@NotNull final Path path) throws IOException {
+        final var data = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (data.remaining() >= RECORD_HEADER) {
+            final int size = data.getInt(data.position());
+            final int expected = data.getInt(data.position() + Integer.BYTES);
+            if (size < Long.BYTES + Integer.BYTES * 2 || size > data.remaining() - RECORD_HEADER) {
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position() + RECORD_HEADER, size);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            final var record = data.duplicate()
+                    .position(data.position() + RECORD_HEADER)
+                    .limit(data.position() + RECORD_HEADER + size)
+                    .slice();
+            nextFileId = Math.max(nextFileId, record.getLong());
+            final int removedNumber = record.getInt();
+            for (int i = 0; i < removedNumber; i++) {
+                tables.remove(record.getLong());
+            }
+            final int addedNumber = record.getInt();
+            for (int i = 0; i < addedNumber; i++) {
+                tables.put(record.getLong(), record.getLong());
+            }
+            data.position(data.position() + RECORD_HEADER + size);
+        }
+        if (data.hasRemaining()) {
+            log.warn("Manifest has {} bytes of torn or corrupted tail", data.remaining());
+        }
+    }
+}
@@ -1,55 +1,153 @@
 package ru.mail.polis.dao.shakhmin;
 
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A memory table on top of {@link ConcurrentSkipListMap}.
+ *
+ * <p>A key maps to its newest version, which links the older versions still visible to snapshots.
+ * Versions are immutable, so a put swaps the newest version of the key with a single CAS,
+ * and the older versions no snapshot needs are released by leaving them out of the new chain.
+ *
+ * <p>The size of the table is the heap it retains, estimated for a 64-bit JVM with compressed
+ * references: the versions with their keys and values, including the object headers and the arrays
+ * behind the buffers, and the nodes of the skip list. An overwrite releases the previous cell
+ * unless a snapshot sees it, but keeps the node and the key.
+ */
 @ThreadSafe
-public final class MemTable implements Table {
+public final class MemTable implements MutableTable {
 
-    @NotNull private NavigableMap<ByteBuffer, Row> storage = new ConcurrentSkipListMap<>();
+    @NotNull private final NavigableMap<ByteBuffer, Version> storage = new ConcurrentSkipListMap<>();
     @NotNull private final AtomicLong sizeInBytes = new AtomicLong();
+    @NotNull private final AtomicLong minTimestamp = new AtomicLong(Long.MAX_VALUE);
     private static final long SERIAL_NUMBER = Long.MAX_VALUE;
 
+    private static final int OBJECT_HEADER = 12;
+    private static final int REFERENCE = 4;
+    /** A data node and on average half an index node of the skip list. */
+    private static final long NODE_SIZE = align(OBJECT_HEADER + REFERENCE * 3)
+            + align(OBJECT_HEADER + REFERENCE * 3) / 2;
+    private static final long VERSION_SIZE = align(OBJECT_HEADER + REFERENCE * 2 + Long.BYTES * 2);
+    private static final long CELL_SIZE = align(OBJECT_HEADER + Long.BYTES + REFERENCE);
+    /** Mark, position, limit, capacity, address, array, offset and flags of a heap buffer. */
+    private static final long BUFFER_SIZE = align(OBJECT_HEADER + Integer.BYTES * 5 + Long.BYTES + REFERENCE + 3);
+    private static final long ARRAY_HEADER = 16;
+
     @NotNull
     @Override
-    public Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return storage.tailMap(from).values().iterator();
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from,
+                                  final long sequence) {
+        return rows(storage.tailMap(from, true), sequence);
     }
 
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key,
-                       @NotNull final ByteBuffer value) throws IOException {
-        final var prev = storage.put(key, Row.of(
-                key,
-                Cell.of(System.currentTimeMillis(), value),
-                SERIAL_NUMBER));
-        if (prev == null) {
-            sizeInBytes.addAndGet(Row.getSizeOfFlushedRow(key, value));
-        } else {
-            sizeInBytes.addAndGet(value.remaining());
-        }
+    public Iterator<Row> descendingIterator(@Nullable final ByteBuffer to,
+                                            final long sequence) {
+        final var head = to == null ? storage : storage.headMap(to, false);
+        return rows(head.descendingMap(), sequence);
     }
 
+    /**
+     * Returns the rows of the keys of the map in its order, skipping the keys written after the snapshot.
+     */
+    @NotNull
+    private static Iterator<Row> rows(@NotNull final NavigableMap<ByteBuffer, Version> map,
+                                      final long sequence) {
+        final var rows = Iterators.transform(map.entrySet().iterator(), e -> {
+            final var version = e.getValue().asOf(sequence);
+            return version == null ? null : Row.of(e.getKey(), version.cell, SERIAL_NUMBER);
+        });
+        return Iterators.filter(rows, Objects::nonNull);
+    }
+
+    @Nullable
     @Override
-    public void remove(@NotNull final ByteBuffer key) throws IOException {
-        final var tombstone = Cell.tombstone(System.currentTimeMillis());
-        final var prev = storage.put(key, Row.of(key, tombstone, SERIAL_NUMBER));
-        if (prev == null) {
-            sizeInBytes.addAndGet(Row.getSizeOfFlushedRow(key, tombstone.getData()));
-        } else if (!prev.getCell().isRemoved()) {
-            sizeInBytes.addAndGet(-prev.getCell().getData().remaining());
+    public Row get(@NotNull final ByteBuffer key) {
+        final var version = storage.get(key);
+        return version == null ? null : Row.of(key, version.cell, SERIAL_NUMBER);
+    }
+
+    /**
+     * Puts the cell unless the key has a newer one. An overwrite keeps the key of the previous version,
+     * so the table retains a single copy of each key however many times it is written.
+     */
+    @Override
+    public void put(@NotNull final ByteBuffer key,
+                    @NotNull final Cell cell,
+                    final long sequence,
+                    @NotNull final NavigableSet<Long> snapshots) {
+        updateMinTimestamp(cell);
+        final var created = new Version(cell, sequence, null);
+        var prev = storage.putIfAbsent(key, created);
+        while (prev != null) {
+            if (!MutableTable.isNewer(cell, sequence, prev.cell, prev.sequence)) {
+                return;
+            }
+            // A write with a smaller sequence number may come second, but no snapshot
+            // is taken while writes are in flight, so it can take the greater number
+            final long nextSequence = Math.max(sequence, prev.sequence);
+            var older = prev;
+            while (older != null && !MutableTable.isVisible(snapshots, older.sequence, nextSequence)) {
+                older = older.older;
+            }
+            final var next = new Version(cell, nextSequence, older);
+            if (storage.replace(key, prev, next)) {
+                sizeInBytes.addAndGet(next.chainSize - prev.chainSize);
+                return;
+            }
+            prev = storage.putIfAbsent(key, created);
         }
+        sizeInBytes.addAndGet(NODE_SIZE + sizeOf(key) + created.chainSize);
+    }
+
+    /**
+     * Estimates the heap retained by the buffer, which is assumed to retain its whole array.
+     */
+    private static long sizeOf(@NotNull final ByteBuffer buffer) {
+        return BUFFER_SIZE + ARRAY_HEADER + align(buffer.capacity());
+    }
+
+    /**
+     * Estimates the heap retained by the cell, tombstones share an empty value.
+     */
+    private static long sizeOf(@NotNull final Cell cell) {
+        return CELL_SIZE + (cell.isRemoved() ? 0L : sizeOf(cell.getData()));
     }
 
-    public void clear() {
-        storage = new ConcurrentSkipListMap<>();
-        sizeInBytes.set(0L);
+    private static long align(final long size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /**
+     * Lowers the oldest timestamp of the table, it is done before the cell is put,
+     * so compaction never sees the cell without the timestamp accounted for.
+     */
+    private void updateMinTimestamp(@NotNull final Cell cell) {
+        final long timestamp = Math.abs(cell.getTimestamp());
+        if (timestamp < minTimestamp.get()) {
+            minTimestamp.accumulateAndGet(timestamp, Math::min);
+        }
+    }
+
+    /**
+     * Returns the oldest timestamp put to the table, it is not raised by overwrites.
+     *
+     * @return the timestamp or {@link Long#MAX_VALUE} if nothing is put yet
+     */
+    @Override
+    public long minTimestamp() {
+        return minTimestamp.get();
     }
 
     @Override
@@ -57,8 +155,43 @@ public final class MemTable implements Table {
         return SERIAL_NUMBER;
     }
 
+    /**
+     * Returns the estimated number of bytes of heap retained by the table.
+     */
     @Override
     public long sizeInBytes() {
         return sizeInBytes.get();
     }
+
+    /**
+     * A cell of a key with the versions written before it.
+     */
+    private static final class Version {
+        @NotNull private final Cell cell;
+        private final long sequence;
+        @Nullable private final Version older;
+        /** Heap retained by this version and the older ones. */
+        private final long chainSize;
+
+        Version(@NotNull final Cell cell,
+                final long sequence,
+                @Nullable final Version older) {
+            this.cell = cell;
+            this.sequence = sequence;
+            this.older = older;
+            this.chainSize = VERSION_SIZE + sizeOf(cell) + (older == null ? 0L : older.chainSize);
+        }
+
+        /**
+         * Returns the newest version written not later than the sequence number or null if none.
+         */
+        @Nullable
+        Version asOf(final long sequence) {
+            var version = this;
+            while (version != null && version.sequence > sequence) {
+                version = version.older;
+            }
+            return version;
+        }
+    }
 }
@@ -2,65 +2,221 @@ package ru.mail.polis.dao.shakhmin;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.WriteBatch;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
-import static ru.mail.polis.dao.shakhmin.Cell.EMPTY_DATA;
-
+/**
+ * The current memory table and the ones pending to be flushed.
+ *
+ * <p>The current table is rotated when it reaches the flush threshold or, once it is at least
+ * a quarter of the threshold, when together with the pending tables it exceeds the memory budget.
+ * So the tables waiting for slow flushes make the current one smaller instead of growing
+ * the memory taken by the pool beyond the budget.
+ *
+ * <p>When flushes fall behind, writes are pushed back instead of piling up pending tables.
+ * Once the number of pending tables reaches the limit, each write is delayed the more,
+ * the closer the current table is to be rotated, and when it has to be rotated, writes stall
+ * until a flush completes. A write which stalls longer than the timeout fails with
+ * {@link WriteStallException}.
+ *
+ * <p>Each write gets the next sequence number of the pool, and a snapshot gets one too,
+ * so it sees exactly the writes with smaller numbers. Writes and snapshots are numbered
+ * under the lock, so a snapshot is never taken between numbering a write and putting it.
+ * Writes are stamped by a {@link HybridClock}, unless they come with a timestamp.
+ */
 public class MemTablePool implements Table, Closeable {
     private static final ByteBuffer LOWEST_KEY = ByteBuffer.allocate(0);
+    private static final int MIN_FLUSH_FRACTION = 4;
+    private static final long MAX_SLOWDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private volatile MemTable current;
-    private final NavigableMap<Long, Table> pendingToFlush;
-    private final NavigableMap<Long, Iterator<Row>> pendingToCompact;
+    private volatile MutableTable current;
+    private final NavigableMap<Long, MutableTable> pendingToFlush;
     private final BlockingQueue<TableToFlush> flushQueue;
     private long serialNumber;
 
     @NotNull private final ExecutorService flusher;
     @NotNull private final Runnable flushingTask;
+    @NotNull private final CommitLog commitLog;
+    @NotNull private final Supplier<MutableTable> tableFactory;
+    @NotNull private final HybridClock clock;
 
     private final long flushThresholdInBytes;
+    private final long memoryBudgetInBytes;
+    private final int maxPendingTables;
+    private final long writeStallTimeoutNanos;
+    private final long stampedWriteStallTimeoutNanos;
+    private final AtomicInteger pendingTables = new AtomicInteger();
+    private final Object stall = new Object();
+    private final AtomicLong pendingInBytes = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final NavigableSet<Long> snapshots = new ConcurrentSkipListSet<>();
     private final AtomicBoolean isClosed;
 
+    public static class Builder {
+        @NotNull private final Runnable flushingTask;
+        @NotNull private final CommitLog commitLog;
+
+        private long flushThresholdInBytes;
+        private long memoryBudgetInBytes = Long.MAX_VALUE;
+        private long startSerialNumber;
+        private int numFlushingThreads = 1;
+        private int maxPendingTables;
+        private long writeStallTimeoutNanos = Long.MAX_VALUE;
+        private long stampedWriteStallTimeoutNanos = Long.MAX_VALUE;
+        @NotNull private Supplier<MutableTable> tableFactory = MemTable::new;
+        @NotNull private HybridClock clock = new HybridClock();
+
+        /**
+         * Creates a builder of a memory table pool.
+         *
+         * @param flushingTask task to be performed when a table appears for flushing to disk
+         * @param commitLog write-ahead log opened with a segment for the start serial number
+         */
+        public Builder(@NotNull final Runnable flushingTask,
+                       @NotNull final CommitLog commitLog) {
+            this.flushingTask = flushingTask;
+            this.commitLog = commitLog;
+        }
+
+        public Builder flushThreshold(final long flushThresholdInBytes) {
+            this.flushThresholdInBytes = flushThresholdInBytes;
+            return this;
+        }
+
+        /**
+         * Limits the memory taken by the current table and the ones pending to be flushed.
+         *
+         * @param memoryBudgetInBytes budget in bytes, unlimited by default
+         * @return this builder
+         */
+        public Builder memoryBudget(final long memoryBudgetInBytes) {
+            this.memoryBudgetInBytes = memoryBudgetInBytes;
+            return this;
+        }
+
+        public Builder startSerialNumber(final long startSerialNumber) {
+            this.startSerialNumber = startSerialNumber;
+            return this;
+        }
+
+        public Builder flushingThreads(final int numFlushingThreads) {
+            this.numFlushingThreads = numFlushingThreads;
+            return this;
+        }
+
+        /**
+         * Limits the number of tables pending to be flushed, by default it is
+         * the number of flushing threads plus one.
+         *
+         * @param maxPendingTables max number of pending tables
+         * @return this builder
+         */
+        public Builder maxPendingTables(final int maxPendingTables) {
+            this.maxPendingTables = maxPendingTables;
+            return this;
+        }
+
+        /**
+         * Sets how long a write may wait for a flush when there are too many pending tables,
+         * by default it waits as long as it takes.
+         *
+         * @param timeout timeout
+         * @param unit unit of the timeout
+         * @return this builder
+         */
+        public Builder writeStallTimeout(final long timeout,
+                                         @NotNull final TimeUnit unit) {
+            this.writeStallTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Sets how long a write with a given timestamp, i.e. a write of the service, may wait
+         * for a flush, never longer than {@link #writeStallTimeout(long, TimeUnit)}.
+         *
+         * @param timeout timeout
+         * @param unit unit of the timeout
+         * @return this builder
+         */
+        public Builder stampedWriteStallTimeout(final long timeout,
+                                                @NotNull final TimeUnit unit) {
+            this.stampedWriteStallTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public Builder tableFactory(@NotNull final Supplier<MutableTable> tableFactory) {
+            this.tableFactory = tableFactory;
+            return this;
+        }
+
+        /**
+         * Sets the clock to stamp writes with, e.g. the one shared by the shards of a storage.
+         *
+         * @param clock clock
+         * @return this builder
+         */
+        public Builder clock(@NotNull final HybridClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public MemTablePool build() {
+            return new MemTablePool(this);
+        }
+    }
+
     /**
      * Construct a new memory table pool for
      * thread safe work with a memory table.
      *
-     * @param flushThresholdInBytes threshold of size of Memtable
-     * @param startSerialNumber next flushing table serial number
-     * @param numFlushingThreads number of threads to flush tables
-     * @param flushingTask task to be performed when a table appears for flushing to disk
+     * @param builder configuration of the pool
      */
-    public MemTablePool(final long flushThresholdInBytes,
-                        final long startSerialNumber,
-                        final int numFlushingThreads,
-                        @NotNull final Runnable flushingTask) {
-        this.flushThresholdInBytes = flushThresholdInBytes;
-        this.current = new MemTable();
+    private MemTablePool(@NotNull final Builder builder) {
+        this.flushThresholdInBytes = builder.flushThresholdInBytes;
+        this.memoryBudgetInBytes = builder.memoryBudgetInBytes;
+        this.maxPendingTables = builder.maxPendingTables > 0
+                ? builder.maxPendingTables
+                : builder.numFlushingThreads + 1;
+        this.writeStallTimeoutNanos = builder.writeStallTimeoutNanos;
+        this.stampedWriteStallTimeoutNanos = Math.min(
+                builder.stampedWriteStallTimeoutNanos,
+                builder.writeStallTimeoutNanos);
+        this.tableFactory = builder.tableFactory;
+        this.clock = builder.clock;
+        this.current = tableFactory.get();
         this.pendingToFlush = new TreeMap<>();
-        this.serialNumber = startSerialNumber;
-        this.flushQueue = new ArrayBlockingQueue<>(numFlushingThreads + 1);
+        this.serialNumber = builder.startSerialNumber;
+        // A pending table per slot and the poison pill
+        this.flushQueue = new ArrayBlockingQueue<>(maxPendingTables + 1);
         this.isClosed = new AtomicBoolean();
-        this.pendingToCompact = new TreeMap<>();
 
         this.flusher = Executors.newFixedThreadPool(
-                numFlushingThreads,
+                builder.numFlushingThreads,
                 new ThreadFactoryBuilder().setNameFormat("flusher-%d").build());
-        this.flushingTask = flushingTask;
+        this.flushingTask = builder.flushingTask;
+        this.commitLog = builder.commitLog;
     }
 
     @NotNull
@@ -76,47 +232,253 @@ public class MemTablePool implements Table, Closeable {
         return Table.reduceIterators(iterators);
     }
 
+    @NotNull
+    @Override
+    public Iterator<Row> descendingIterator(@Nullable final ByteBuffer to) throws IOException {
+        final List<Iterator<Row>> iterators;
+        lock.readLock().lock();
+        try {
+            iterators = Table.joinDescendingIterators(current, pendingToFlush, to);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Table.reduceDescendingIterators(iterators);
+    }
+
+    /**
+     * Returns the newest row of the key among the memory tables. A write keeps the timestamp
+     * it came with, so the current table may hold an older cell than a pending one.
+     */
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) throws IOException {
+        lock.readLock().lock();
+        try {
+            var row = current.get(key);
+            for (final var table : pendingToFlush.descendingMap().values()) {
+                row = Table.newer(row, table.get(key));
+            }
+            return row;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value) throws IOException {
+        put(key, Cell.of(clock.now(), value), writeStallTimeoutNanos);
+    }
+
+    /**
+     * Writes the value with the timestamp as is, the clock catches up with it.
+     * The write stalls no longer than the stamped write stall timeout.
+     *
+     * @param key key
+     * @param value value
+     * @param timestamp hybrid timestamp of the write
+     * @throws IOException if an I/O error occurs
+     */
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp) throws IOException {
+        clock.update(timestamp);
+        put(key, Cell.of(timestamp, value), stampedWriteStallTimeoutNanos);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        put(key, Cell.tombstone(clock.now()), writeStallTimeoutNanos);
+    }
+
+    /**
+     * Writes a tombstone with the timestamp as is, the clock catches up with it.
+     * The write stalls no longer than the stamped write stall timeout.
+     *
+     * @param key key
+     * @param timestamp hybrid timestamp of the removal
+     * @throws IOException if an I/O error occurs
+     */
+    public void remove(@NotNull final ByteBuffer key,
+                       final long timestamp) throws IOException {
+        clock.update(timestamp);
+        put(key, Cell.tombstone(timestamp), stampedWriteStallTimeoutNanos);
+    }
+
+    private void put(@NotNull final ByteBuffer key,
+                     @NotNull final Cell cell,
+                     final long stallTimeoutNanos) throws IOException {
+        if (isClosed.get()) {
+            throw new IllegalStateException("MemTablePool is already closed");
+        }
+        admit(stallTimeoutNanos);
+        write(key, cell);
+        setToFlush();
+    }
+
+    /**
+     * Takes a snapshot of the memory tables and of the SSTables. The SSTables are got under the lock,
+     * so they may have a table flushed from a pending one, but not from the current one, which may
+     * have later writes. The memory tables stay in memory while the snapshot is open,
+     * even once they are flushed.
+     *
+     * @param ssTables supplies the SSTables by their serial numbers
+     * @return snapshot to be closed
+     */
+    @NotNull
+    TableSnapshot snapshot(@NotNull final Supplier<NavigableMap<Long, Table>> ssTables) {
         if (isClosed.get()) {
             throw new IllegalStateException("MemTablePool is already closed");
         }
-        setToFlush(key);
         lock.writeLock().lock();
         try {
-            current.upsert(key, value);
+            final long snapshot = sequence.incrementAndGet();
+            snapshots.add(snapshot);
+            return new TableSnapshot(
+                    snapshot,
+                    current,
+                    new TreeMap<>(pendingToFlush),
+                    ssTables.get(),
+                    () -> snapshots.remove(snapshot));
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) throws IOException {
+    public void apply(@NotNull final WriteBatch batch) throws IOException {
+        apply(batch, clock.now(), writeStallTimeoutNanos);
+    }
+
+    /**
+     * Applies the writes of the batch with the timestamp as is, see {@link #apply(WriteBatch, long, long)}.
+     * The batch stalls no longer than the stamped write stall timeout.
+     *
+     * @param batch writes
+     * @param timestamp hybrid timestamp of the writes, the clock catches up with it
+     * @throws IOException if an I/O error occurs
+     */
+    public void apply(@NotNull final WriteBatch batch,
+                      final long timestamp) throws IOException {
+        clock.update(timestamp);
+        apply(batch, timestamp, stampedWriteStallTimeoutNanos);
+    }
+
+    /**
+     * Applies the writes of the batch with a single timestamp and a single log record.
+     * The batch is put under one lock with one contiguous range of sequence numbers, so it is
+     * visible atomically only to snapshots: iterators over the live tables may see a part of it.
+     *
+     * @param batch writes
+     * @param timestamp hybrid timestamp of the writes
+     * @param stallTimeoutNanos how long the batch may wait for a flush
+     * @throws IOException if an I/O error occurs
+     */
+    private void apply(@NotNull final WriteBatch batch,
+                       final long timestamp,
+                       final long stallTimeoutNanos) throws IOException {
         if (isClosed.get()) {
             throw new IllegalStateException("MemTablePool is already closed");
         }
-        setToFlush(key);
+        if (batch.isEmpty()) {
+            return;
+        }
+        admit(stallTimeoutNanos);
+        final long position;
         lock.writeLock().lock();
         try {
-            current.remove(key);
+            position = commitLog.append(batch, timestamp);
+            for (final var write : batch.writes()) {
+                current.put(write.getKey(), Cell.of(write, timestamp), sequence.incrementAndGet(), snapshots);
+            }
         } finally {
             lock.writeLock().unlock();
         }
+        commitLog.sync(position);
+        setToFlush();
+    }
+
+    /**
+     * Logs the cell and puts it to the current table. Writers share the read lock, which only
+     * keeps the current table from being switched, so the record always goes to the segment
+     * of the table it is put to. Concurrent writes to a key may reach the log and the table
+     * in different orders, but both keep the newest cell, see {@link MutableTable#put}.
+     * Waiting for the log to be synced is done outside of the lock to let concurrent
+     * writers share a sync.
+     */
+    private void write(@NotNull final ByteBuffer key,
+                       @NotNull final Cell cell) throws IOException {
+        final long position;
+        lock.readLock().lock();
+        try {
+            position = commitLog.append(key, cell);
+            current.put(key, cell, sequence.incrementAndGet(), snapshots);
+        } finally {
+            lock.readLock().unlock();
+        }
+        commitLog.sync(position);
+    }
+
+    /**
+     * Delays the write while all the slots for pending tables are taken.
+     *
+     * @param stallTimeoutNanos how long the write may wait for a flush
+     * @throws WriteStallException if the current table has to be rotated,
+     *                             but no flush completes within the timeout
+     */
+    private void admit(final long stallTimeoutNanos) throws WriteStallException {
+        if (pendingTables.get() < maxPendingTables) {
+            return;
+        }
+        final long size = current.sizeInBytes();
+        final long limit = flushLimit();
+        if (size < limit) {
+            LockSupport.parkNanos(MAX_SLOWDOWN_NANOS * size / limit);
+            return;
+        }
+        final long deadline = System.nanoTime() + stallTimeoutNanos;
+        synchronized (stall) {
+            while (pendingTables.get() >= maxPendingTables && needsFlush()) {
+                final long timeout = deadline - System.nanoTime();
+                if (timeout <= 0) {
+                    throw new WriteStallException("Writes are stalled by " + pendingTables.get() + " pending tables");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(stall, timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 
-    private void setToFlush(@NotNull final ByteBuffer key) throws IOException {
-        if (current.sizeInBytes()
-                + Row.getSizeOfFlushedRow(key, EMPTY_DATA) >= flushThresholdInBytes) {
+    /**
+     * Returns the size the current table is rotated at.
+     */
+    private long flushLimit() {
+        return Math.max(
+                flushThresholdInBytes / MIN_FLUSH_FRACTION,
+                Math.min(flushThresholdInBytes, memoryBudgetInBytes - pendingInBytes.get()));
+    }
+
+    private boolean needsFlush() {
+        return current.sizeInBytes() >= flushLimit();
+    }
+
+    private void setToFlush() throws IOException {
+        if (needsFlush()) {
             TableToFlush tableToFlush = null;
             lock.writeLock().lock();
             try {
-                if (current.sizeInBytes()
-                        + Row.getSizeOfFlushedRow(key, EMPTY_DATA) >= flushThresholdInBytes) {
+                if (needsFlush() && pendingTables.get() < maxPendingTables) {
+                    // The log is rotated first, so the pool is left as is if that fails
+                    commitLog.rotate(serialNumber + 1);
                     tableToFlush = TableToFlush.of(current.iterator(LOWEST_KEY), serialNumber);
                     pendingToFlush.put(serialNumber, current);
+                    pendingInBytes.addAndGet(current.sizeInBytes());
+                    pendingTables.incrementAndGet();
                     serialNumber++;
-                    current = new MemTable();
+                    current = tableFactory.get();
                 }
             } finally {
                 lock.writeLock().unlock();
@@ -132,28 +494,6 @@ public class MemTablePool implements Table, Closeable {
         }
     }
 
-    private void setCompactTableToFlush(@NotNull final Iterator<Row> rows) throws IOException {
-        TableToFlush tableToFlush;
-        lock.writeLock().lock();
-        try {
-            tableToFlush = new TableToFlush
-                    .Builder(rows, serialNumber)
-                    .isCompactTable()
-                    .build();
-            serialNumber++;
-            pendingToCompact.put(serialNumber, rows);
-            current = new MemTable();
-        } finally {
-            lock.writeLock().unlock();
-        }
-        try {
-            flushQueue.put(tableToFlush);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-        flusher.execute(flushingTask);
-    }
-
     @NotNull
     public TableToFlush takeToFlush() throws InterruptedException {
         return flushQueue.take();
@@ -167,62 +507,71 @@ public class MemTablePool implements Table, Closeable {
     public void flushed(final long serialNumber) {
         lock.writeLock().lock();
         try {
-            pendingToFlush.remove(serialNumber);
+            final var table = pendingToFlush.remove(serialNumber);
+            if (table != null) {
+                pendingInBytes.addAndGet(-table.sizeInBytes());
+                pendingTables.decrementAndGet();
+            }
         } finally {
             lock.writeLock().unlock();
         }
+        synchronized (stall) {
+            stall.notifyAll();
+        }
     }
 
-    /**
-     * Compact SStables.
-     *
-     * @param ssTables SStables
-     * @throws IOException if an I/O error occurs
-     */
-    public void compact(@NotNull final NavigableMap<Long, Table> ssTables) throws IOException {
-        final List<Iterator<Row>> iterators;
+    @Override
+    public long sizeInBytes() {
         lock.readLock().lock();
         try {
-            iterators = Table.joinIterators(current, ssTables, LOWEST_KEY);
+            return current.sizeInBytes() + pendingInBytes.get();
         } finally {
             lock.readLock().unlock();
         }
-        setCompactTableToFlush(Table.reduceIterators(iterators));
     }
 
-    /**
-     * Remove a compacted table pending to be flushed to disk.
-     *
-     * @param serialNumber serial number of table
-     */
-    public void compacted(final long serialNumber) {
-        lock.writeLock().lock();
+    @Override
+    public long serialNumber() {
+        lock.readLock().lock();
         try {
-            pendingToCompact.remove(serialNumber);
+            return serialNumber;
         } finally {
-            lock.writeLock().unlock();
+            lock.readLock().unlock();
         }
     }
 
+    /**
+     * Returns the oldest timestamp of the current table and the ones pending to be flushed.
+     * A table leaves the pool only after it is loaded as an SSTable, so the bound read before
+     * the SSTables covers every table which is not among them yet.
+     *
+     * @return lower bound of the timestamps of the memory tables
+     */
     @Override
-    public long sizeInBytes() {
+    public long minTimestamp() {
         lock.readLock().lock();
         try {
-            long sizeInBytes = current.sizeInBytes();
+            long min = current.minTimestamp();
             for (final var table : pendingToFlush.values()) {
-                sizeInBytes += table.sizeInBytes();
+                min = Math.min(min, table.minTimestamp());
             }
-            return sizeInBytes;
+            return min;
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    @Override
-    public long serialNumber() {
+    /**
+     * Returns the lowest serial number of the tables which are not flushed yet,
+     * i.e. of the oldest table pending to be flushed or of the current one if none is.
+     * It never decreases, and every table with a lower serial number is already flushed.
+     *
+     * @return serial number of the oldest table not flushed yet
+     */
+    public long lowestUnflushedSerialNumber() {
         lock.readLock().lock();
         try {
-            return serialNumber;
+            return pendingToFlush.isEmpty() ? serialNumber : pendingToFlush.firstKey();
         } finally {
             lock.readLock().unlock();
         }
@@ -0,0 +1,122 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+/**
+ * A table which accepts writes, i.e. a memory table.
+ *
+ * <p>Each write carries a sequence number, and the table keeps the versions of a key which
+ * are still visible to the open snapshots, so a snapshot iterates the table as it was
+ * when the snapshot was taken, see {@link #iterator(ByteBuffer, long)}.
+ */
+public interface MutableTable extends Table {
+
+    /**
+     * Puts the cell as is, e.g. the one which has already been written to the commit log.
+     * The cell doesn't replace a newer one, so concurrent writes to a key leave the same cell
+     * whatever order they are applied in. The versions of the key which no open snapshot
+     * can see are released.
+     *
+     * @param key key
+     * @param cell value or tombstone
+     * @param sequence sequence number of the write
+     * @param snapshots sequence numbers of the open snapshots
+     */
+    void put(@NotNull ByteBuffer key,
+             @NotNull Cell cell,
+             long sequence,
+             @NotNull NavigableSet<Long> snapshots);
+
+    /**
+     * Puts the cell with no open snapshots, so a later put of a cell with the same timestamp
+     * replaces it, e.g. when a commit log is replayed.
+     *
+     * @param key key
+     * @param cell value or tombstone
+     */
+    default void put(@NotNull final ByteBuffer key,
+                     @NotNull final Cell cell) {
+        put(key, cell, 0L, Collections.emptyNavigableSet());
+    }
+
+    /**
+     * Returns the rows as they were when the snapshot with the given sequence number was taken,
+     * i.e. the newest version of each key written with a sequence number not greater than it.
+     * The snapshot must be open, or the versions it sees may have been released.
+     *
+     * @param from starting key
+     * @param sequence sequence number of the snapshot
+     * @return rows of the snapshot
+     */
+    @NotNull
+    Iterator<Row> iterator(@NotNull ByteBuffer from,
+                           long sequence);
+
+    /**
+     * Returns the rows with keys less than the given one in descending order of keys
+     * as they were when the snapshot with the given sequence number was taken,
+     * see {@link #iterator(ByteBuffer, long)}.
+     *
+     * @param to key to start before (exclusive) or null to start at the last row
+     * @param sequence sequence number of the snapshot
+     * @return rows of the snapshot in descending order of keys
+     */
+    @NotNull
+    Iterator<Row> descendingIterator(@Nullable ByteBuffer to,
+                                     long sequence);
+
+    /**
+     * Tells whether the cell is to replace the previous one, ties go to the later write.
+     */
+    static boolean isNewer(@NotNull final Cell cell,
+                           final long sequence,
+                           @NotNull final Cell previous,
+                           final long previousSequence) {
+        final int cmp = cell.compareTo(previous);
+        return cmp < 0 || cmp == 0 && sequence >= previousSequence;
+    }
+
+    /**
+     * Tells whether a snapshot sees the version written with the given sequence number
+     * as the newest one, i.e. it was taken before the next version was written.
+     *
+     * @param snapshots sequence numbers of the open snapshots
+     * @param sequence sequence number of the version
+     * @param nextSequence sequence number of the next version of the key
+     */
+    static boolean isVisible(@NotNull final NavigableSet<Long> snapshots,
+                             final long sequence,
+                             final long nextSequence) {
+        final var snapshot = snapshots.ceiling(sequence);
+        return snapshot != null && snapshot < nextSequence;
+    }
+
+    @NotNull
+    @Override
+    default Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    @Override
+    default Iterator<Row> descendingIterator(@Nullable final ByteBuffer to) {
+        return descendingIterator(to, Long.MAX_VALUE);
+    }
+
+    @Override
+    default void upsert(@NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value) throws IOException {
+        put(key, Cell.of(System.currentTimeMillis(), value));
+    }
+
+    @Override
+    default void remove(@NotNull final ByteBuffer key) throws IOException {
+        put(key, Cell.tombstone(System.currentTimeMillis()));
+    }
+}
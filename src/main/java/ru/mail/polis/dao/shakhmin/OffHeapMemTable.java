@@ -0,0 +1,481 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory table which keeps both the rows and the skip list over them in direct memory,
+ * so a write allocates no heap objects and the table doesn't compete with requests for the heap.
+ *
+ * <p>Memory is allocated from an arena of direct chunks of {@link #CHUNK_SIZE} bytes and is never
+ * freed while the table is alive, chunks are released by the garbage collector with the table.
+ * Huge keys and values are the exception, they get heap chunks, see {@link #allocate(int)}.
+ * An address is a long with the index of the chunk in the upper half and the offset in the lower one.
+ * A node of the skip list is
+ * {@code [value address (long)][height (int)][key size (int)][next node address (long)]...[key]}
+ * and a value is {@code [timestamp (long)][sequence (long)][older value address (long)][value size (int)][value]}.
+ * An update appends a new value linked to the older ones still visible to snapshots and swings
+ * the value address of the node, unless the node has a newer one. Values are never changed
+ * once published, so the older ones no snapshot needs are released by leaving them out of the link.
+ *
+ * <p>Neither writes nor reads lock: a node or a value is completely written before its address
+ * is published with a CAS, and readers load addresses with volatile loads. A new node is linked
+ * level by level from the bottom one, and a CAS which fails because a concurrent writer changed
+ * the link is retried after a new search. A writer which loses the race to link a key leaves
+ * its node unreachable in the arena and updates the node of the winner instead.
+ * Memory is taken from the current chunk with a CAS on its free offset, only adding a chunk
+ * takes the monitor.
+ */
+@ThreadSafe
+public final class OffHeapMemTable implements MutableTable {
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final long SERIAL_NUMBER = Long.MAX_VALUE;
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int MAX_HEIGHT = 12;
+    private static final long NIL = -1L;
+    private static final int VALUE = 0;
+    private static final int HEIGHT = Long.BYTES;
+    private static final int KEY_SIZE = HEIGHT + Integer.BYTES;
+    private static final int NEXT = KEY_SIZE + Integer.BYTES;
+    private static final int SEQUENCE = Long.BYTES;
+    private static final int OLDER = SEQUENCE + Long.BYTES;
+    private static final int VALUE_SIZE = OLDER + Long.BYTES;
+    private static final int VALUE_HEADER = VALUE_SIZE + Integer.BYTES;
+
+    private static final ThreadLocal<Splice> SPLICE = ThreadLocal.withInitial(Splice::new);
+
+    @NotNull private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    @NotNull private final AtomicLong sizeInBytes = new AtomicLong();
+    @NotNull private final AtomicLong minTimestamp = new AtomicLong(Long.MAX_VALUE);
+    /** Address of the free space of the current chunk, a full chunk at first so the first allocation adds one. */
+    @NotNull private final AtomicLong free = new AtomicLong(CHUNK_SIZE);
+    private final long head;
+
+    public OffHeapMemTable() {
+        this.head = allocate(NEXT + MAX_HEIGHT * Long.BYTES);
+        final var chunk = chunk(head);
+        chunk.putInt(offset(head) + HEIGHT, MAX_HEIGHT);
+        chunk.putInt(offset(head) + KEY_SIZE, 0);
+        for (int level = 0; level < MAX_HEIGHT; level++) {
+            chunk.putLong(offset(head) + NEXT + level * Long.BYTES, NIL);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from,
+                                  final long sequence) {
+        return new NodeIterator(findGreaterOrEqual(from, null), sequence, false);
+    }
+
+    /**
+     * Returns the rows in descending order of keys. Nodes don't link the previous ones,
+     * so each step searches the skip list for the predecessor of the current node,
+     * which takes logarithmic time just like a seek.
+     */
+    @NotNull
+    @Override
+    public Iterator<Row> descendingIterator(@Nullable final ByteBuffer to,
+                                            final long sequence) {
+        return new NodeIterator(findLess(to), sequence, true);
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        final long node = findGreaterOrEqual(key, null);
+        if (node == NIL || compare(node, key) != 0) {
+            return null;
+        }
+        return row(node, value(node));
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key,
+                    @NotNull final Cell cell,
+                    final long sequence,
+                    @NotNull final NavigableSet<Long> snapshots) {
+        updateMinTimestamp(cell);
+        final var splice = SPLICE.get();
+        long node = findGreaterOrEqual(key, splice);
+        if (node == NIL || compare(node, key) != 0) {
+            node = insert(key, cell, sequence, splice);
+            if (node == NIL) {
+                return;
+            }
+        }
+        update(node, cell, sequence, snapshots);
+    }
+
+    /**
+     * Links a new node with the cell.
+     *
+     * @param splice nodes around the key on each level as found by the last search
+     * @return {@link #NIL} if the node is linked or the node of the key linked by a concurrent writer
+     */
+    private long insert(@NotNull final ByteBuffer key,
+                        @NotNull final Cell cell,
+                        final long sequence,
+                        @NotNull final Splice splice) {
+        final long value = allocateValue(cell, sequence, NIL);
+        final int height = randomHeight();
+        final long created = allocate(NEXT + height * Long.BYTES + key.remaining());
+        final var chunk = chunk(created);
+        final int offset = offset(created);
+        chunk.putLong(offset + VALUE, value)
+                .putInt(offset + HEIGHT, height)
+                .putInt(offset + KEY_SIZE, key.remaining());
+        chunk.duplicate().position(offset + NEXT + height * Long.BYTES).put(key.duplicate());
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                // Nobody reads the link of the node on this level until the node is linked on it
+                final long next = splice.successors[level];
+                chunk.putLong(offset + NEXT + level * Long.BYTES, next);
+                final long pred = splice.predecessors[level];
+                if (LONGS.compareAndSet(chunk(pred), offset(pred) + NEXT + level * Long.BYTES, next, created)) {
+                    break;
+                }
+                final long found = findGreaterOrEqual(key, splice);
+                if (level == 0 && found != NIL && compare(found, key) == 0) {
+                    return found;
+                }
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Swaps the newest value of the node for the cell unless the node has a newer one.
+     */
+    private void update(final long node,
+                        @NotNull final Cell cell,
+                        final long sequence,
+                        @NotNull final NavigableSet<Long> snapshots) {
+        long value = NIL;
+        long prev = value(node);
+        while (MutableTable.isNewer(cell, sequence, cell(prev), sequence(prev))) {
+            // See MemTable#put on the sequence number of a write which comes second
+            final long nextSequence = Math.max(sequence, sequence(prev));
+            long older = prev;
+            while (older != NIL && !MutableTable.isVisible(snapshots, sequence(older), nextSequence)) {
+                older = chunk(older).getLong(offset(older) + OLDER);
+            }
+            if (value == NIL) {
+                value = allocateValue(cell, nextSequence, older);
+            } else {
+                // The value is not published yet, so it is reused for the next attempt
+                chunk(value).putLong(offset(value) + SEQUENCE, nextSequence)
+                        .putLong(offset(value) + OLDER, older);
+            }
+            if (LONGS.compareAndSet(chunk(node), offset(node) + VALUE, prev, value)) {
+                return;
+            }
+            prev = value(node);
+        }
+    }
+
+    /**
+     * Lowers the oldest timestamp of the table, it is done before the cell is put,
+     * so compaction never sees the cell without the timestamp accounted for.
+     */
+    private void updateMinTimestamp(@NotNull final Cell cell) {
+        final long timestamp = Math.abs(cell.getTimestamp());
+        if (timestamp < minTimestamp.get()) {
+            minTimestamp.accumulateAndGet(timestamp, Math::min);
+        }
+    }
+
+    /**
+     * Returns the oldest timestamp put to the table, it is not raised by overwrites.
+     *
+     * @return the timestamp or {@link Long#MAX_VALUE} if nothing is put yet
+     */
+    @Override
+    public long minTimestamp() {
+        return minTimestamp.get();
+    }
+
+    @Override
+    public long serialNumber() {
+        return SERIAL_NUMBER;
+    }
+
+    /**
+     * Returns the number of bytes of the allocated chunks, including the space taken by
+     * the replaced values and the unused tail of the current chunk.
+     */
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    /**
+     * Finds the first node with a key which is not less than the given one.
+     * The node is the one compared with the key, since a concurrent writer may link
+     * a smaller key after the predecessor once it is compared.
+     *
+     * @param key key
+     * @param splice if not null, receives the nodes around the key on each level
+     * @return address of the node or {@link #NIL} if all the keys are less
+     */
+    private long findGreaterOrEqual(@NotNull final ByteBuffer key,
+                                    @Nullable final Splice splice) {
+        long node = head;
+        long next = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != NIL && compare(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (splice != null) {
+                splice.predecessors[level] = node;
+                splice.successors[level] = next;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Finds the last node with a key which is less than the given one.
+     *
+     * @param key key or null to find the last node
+     * @return address of the node or {@link #NIL} if no key is less
+     */
+    private long findLess(@Nullable final ByteBuffer key) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL && (key == null || compare(next, key) < 0)) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return node == head ? NIL : node;
+    }
+
+    private long next(final long node,
+                      final int level) {
+        return (long) LONGS.getVolatile(chunk(node), offset(node) + NEXT + level * Long.BYTES);
+    }
+
+    /**
+     * Compares the key of the node with the given one in the order of {@link ByteBuffer#compareTo}.
+     */
+    private int compare(final long node,
+                        @NotNull final ByteBuffer key) {
+        final var chunk = chunk(node);
+        final int offset = offset(node);
+        final int size = chunk.getInt(offset + KEY_SIZE);
+        final int from = offset + NEXT + chunk.getInt(offset + HEIGHT) * Long.BYTES;
+        final int keyFrom = key.position();
+        final int length = Math.min(size, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(chunk.get(from + i), key.get(keyFrom + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - key.remaining();
+    }
+
+    /**
+     * Returns the address of the newest value of the node.
+     */
+    private long value(final long node) {
+        return (long) LONGS.getVolatile(chunk(node), offset(node) + VALUE);
+    }
+
+    /**
+     * Returns the address of the newest value written not later than the sequence number or NIL if none.
+     */
+    private long valueAsOf(final long node,
+                           final long sequence) {
+        long value = value(node);
+        while (value != NIL && sequence(value) > sequence) {
+            value = chunk(value).getLong(offset(value) + OLDER);
+        }
+        return value;
+    }
+
+    private long sequence(final long value) {
+        return chunk(value).getLong(offset(value) + SEQUENCE);
+    }
+
+    @NotNull
+    private Cell cell(final long value) {
+        final var chunk = chunk(value);
+        final int offset = offset(value);
+        final long timestamp = chunk.getLong(offset);
+        return timestamp < 0
+                ? Cell.tombstone(-timestamp)
+                : Cell.of(timestamp, slice(chunk, offset + VALUE_HEADER, chunk.getInt(offset + VALUE_SIZE)));
+    }
+
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final var chunk = chunk(node);
+        final int offset = offset(node);
+        final int keyFrom = offset + NEXT + chunk.getInt(offset + HEIGHT) * Long.BYTES;
+        return slice(chunk, keyFrom, chunk.getInt(offset + KEY_SIZE));
+    }
+
+    @NotNull
+    private Row row(final long node,
+                    final long value) {
+        return Row.of(key(node), cell(value), SERIAL_NUMBER);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer chunk,
+                                    final int from,
+                                    final int size) {
+        return chunk.duplicate().position(from).limit(from + size).slice().asReadOnlyBuffer();
+    }
+
+    private long allocateValue(@NotNull final Cell cell,
+                               final long sequence,
+                               final long older) {
+        final var data = cell.getData();
+        final long value = allocate(VALUE_HEADER + data.remaining());
+        chunk(value).putLong(offset(value), cell.getTimestamp())
+                .putLong(offset(value) + SEQUENCE, sequence)
+                .putLong(offset(value) + OLDER, older)
+                .putInt(offset(value) + VALUE_SIZE, data.remaining())
+                .duplicate()
+                .position(offset(value) + VALUE_HEADER)
+                .put(data);
+        return value;
+    }
+
+    /**
+     * Allocates memory aligned to {@link Long#BYTES}.
+     * Allocations larger than a quarter of a chunk get a heap chunk of their own:
+     * a huge row is a single object anyway, and keeping it on heap means the direct memory
+     * is taken by the fixed size chunks only, which matters since direct memory is released
+     * only by a full GC and the one requested on reservation is skipped while
+     * any thread is in a JNI critical region, e.g. compressing a block.
+     */
+    private long allocate(final int size) {
+        final int aligned = (size + Long.BYTES - 1) & -Long.BYTES;
+        if (aligned > CHUNK_SIZE / 4) {
+            return (long) addChunk(ByteBuffer.allocate(aligned)) << Integer.SIZE;
+        }
+        while (true) {
+            final long address = free.get();
+            if (offset(address) + aligned <= CHUNK_SIZE) {
+                if (free.compareAndSet(address, address + aligned)) {
+                    return address;
+                }
+            } else {
+                synchronized (this) {
+                    if (free.get() == address) {
+                        final var chunk = ByteBuffer.allocateDirect(CHUNK_SIZE + Long.BYTES - 1)
+                                .alignedSlice(Long.BYTES);
+                        free.set((long) addChunk(chunk) << Integer.SIZE);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes a new chunk, the chunks array is copied so readers never see it half updated.
+     */
+    private synchronized int addChunk(@NotNull final ByteBuffer chunk) {
+        final var next = Arrays.copyOf(chunks, chunks.length + 1);
+        next[chunks.length] = chunk.order(ByteOrder.nativeOrder());
+        sizeInBytes.addAndGet(chunk.capacity());
+        chunks = next;
+        return chunks.length - 1;
+    }
+
+    @NotNull
+    private ByteBuffer chunk(final long address) {
+        return chunks[(int) (address >>> Integer.SIZE)];
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static int randomHeight() {
+        final var random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Nodes around a key on each level, reused by the puts of a thread so a write allocates no heap objects.
+     */
+    private static final class Splice {
+        private final long[] predecessors = new long[MAX_HEIGHT];
+        private final long[] successors = new long[MAX_HEIGHT];
+    }
+
+    /**
+     * Iterates the nodes with a value visible to the snapshot in ascending or descending order.
+     */
+    private class NodeIterator implements Iterator<Row> {
+        private final long sequence;
+        private final boolean descending;
+        private long node;
+        private long value;
+
+        NodeIterator(final long node,
+                     final long sequence,
+                     final boolean descending) {
+            this.sequence = sequence;
+            this.descending = descending;
+            this.node = node;
+            skipInvisible();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return node != NIL;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final var row = row(node, value);
+            advance();
+            skipInvisible();
+            return row;
+        }
+
+        private void skipInvisible() {
+            while (node != NIL) {
+                value = valueAsOf(node, sequence);
+                if (value != NIL) {
+                    return;
+                }
+                advance();
+            }
+        }
+
+        private void advance() {
+            node = descending ? findLess(key(node)) : OffHeapMemTable.this.next(node, 0);
+        }
+    }
+}
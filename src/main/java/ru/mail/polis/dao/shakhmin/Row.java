@@ -16,6 +16,15 @@ public final class Row implements Comparable<Row> {
                     .thenComparing(Row::getCell)
                     .thenComparing((r) -> -r.getSerialNumber());
 
+    /**
+     * Orders rows by keys in descending order, the rows of a key are still ordered from the newest one.
+     */
+    static final Comparator<Row> DESCENDING_KEYS =
+            Comparator
+                    .comparing(Row::getKey, Comparator.reverseOrder())
+                    .thenComparing(Row::getCell)
+                    .thenComparing((r) -> -r.getSerialNumber());
+
     private Row(
             @NotNull final ByteBuffer key,
             @NotNull final Cell cell,
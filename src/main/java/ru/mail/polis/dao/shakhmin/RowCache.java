@@ -0,0 +1,127 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Read-through cache of resolved cells in front of the tables of a storage.
+ *
+ * <p>Tombstones are cached as is and keys missing in the storage are cached
+ * as negative entries, so a hot key costs a single hash lookup either way.
+ *
+ * <p>A load may race with a write of the same key. Every write bumps the version
+ * of the stripe of the key before invalidating it, and a load rechecks the version
+ * after caching its result, so a cell read before the write never survives it.
+ */
+final class RowCache {
+    private static final int SHARDS_NUMBER = 16;
+    private static final int STRIPES_NUMBER = 1024;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final Cell ABSENT = Cell.of(0L, Cell.EMPTY_DATA);
+
+    @FunctionalInterface
+    interface Loader {
+        @Nullable
+        Cell load(@NotNull ByteBuffer key) throws IOException;
+    }
+
+    @NotNull private final ClockCache<ByteBuffer, CachedCell> cache;
+    @NotNull private final AtomicLongArray versions = new AtomicLongArray(STRIPES_NUMBER);
+    private final boolean enabled;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacityInBytes maximum total size of the cached keys and values,
+     *                        the cache is disabled if it is 0
+     */
+    RowCache(final long capacityInBytes) {
+        this.cache = new ClockCache<>(capacityInBytes, SHARDS_NUMBER, CachedCell::weight);
+        this.enabled = capacityInBytes > 0;
+    }
+
+    /**
+     * Returns the cached cell or loads and caches it.
+     *
+     * @param key key
+     * @param loader resolves the cell by the tables
+     * @return null if the key is absent and cell otherwise
+     * @throws IOException if the loader fails
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key,
+             @NotNull final Loader loader) throws IOException {
+        if (!enabled) {
+            return loader.load(key);
+        }
+        final var cached = cache.get(key);
+        if (cached != null) {
+            return cached.cell == ABSENT ? null : cached.cell;
+        }
+        final int stripe = stripe(key);
+        final long version = versions.get(stripe);
+        final var cell = loader.load(key);
+        final var ownedKey = ByteBuffer.allocate(key.remaining()).put(key.duplicate()).flip();
+        cache.put(ownedKey, new CachedCell(ownedKey, cell == null ? ABSENT : copy(cell)));
+        if (versions.get(stripe) != version) {
+            cache.invalidate(ownedKey);
+        }
+        return cell;
+    }
+
+    /**
+     * Drops the cached cell, must be called after the key is written.
+     *
+     * @param key written key
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        if (!enabled) {
+            return;
+        }
+        versions.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    long hitCount() {
+        return cache.hitCount();
+    }
+
+    long missCount() {
+        return cache.missCount();
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES_NUMBER - 1);
+    }
+
+    /**
+     * Copies the value, so that the cache doesn't pin the whole block the value is sliced from.
+     */
+    @NotNull
+    private static Cell copy(@NotNull final Cell cell) {
+        if (cell.isRemoved()) {
+            return cell;
+        }
+        final var data = cell.getData();
+        return Cell.of(cell.getTimestamp(), ByteBuffer.allocate(data.remaining()).put(data).flip());
+    }
+
+    private static final class CachedCell {
+        @NotNull private final ByteBuffer key;
+        @NotNull private final Cell cell;
+
+        CachedCell(@NotNull final ByteBuffer key,
+                   @NotNull final Cell cell) {
+            this.key = key;
+            this.cell = cell;
+        }
+
+        int weight() {
+            return ENTRY_OVERHEAD + key.capacity() + cell.getData().remaining();
+        }
+    }
+}
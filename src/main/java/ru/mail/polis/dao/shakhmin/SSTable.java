@@ -1,108 +1,250 @@
 package ru.mail.polis.dao.shakhmin;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * An immutable sorted table stored on disk.
+ *
+ * <p>The file consists of data blocks, a sparse index, a bloom filter
+ * and a fixed size footer:
+ * <pre>
+ * [block 0]...[block N-1]
+ * [index entry 0]...[index entry N-1][entry position 0 (int)]...[entry position N-1 (int)]
+ * [bloom filter words (long)]
+ * [index offset (long)][bloom offset (long)][rows number (long)][tombstones number (long)]
+ * [oldest tombstone timestamp (long)][oldest timestamp (long)][newest timestamp (long)]
+ * [blocks number (int)][bloom words (int)][bloom hashes (int)][codec (int)][version (int)][magic (long)]
+ * </pre>
+ * Each block holds about {@link #BLOCK_SIZE} bytes of rows with prefix compressed keys,
+ * see {@link BlockBuilder} for the layout of a block.
+ * A block is prefixed with a flag telling whether the rows are compressed
+ * with the {@link Codec} of the table or stored as is, the latter is the case
+ * when compression doesn't make the block smaller.
+ * An index entry is {@code [block offset (long)][stored size (int)][raw size (int)][separator size (int)][separator]},
+ * where the separator is the shortest prefix of the first key of the block which is greater
+ * than the last key of the previous block, so huge keys don't bloat the index.
+ *
+ * <p>Data is mapped in segments of {@link #SEGMENT_SIZE} bytes and no block
+ * crosses a segment boundary, so the file isn't limited by the 2 GB of a single mapping.
+ * Only the footer is read when a table is opened, the data, the index and the bloom filter
+ * are mapped on first access, so opening a storage of many tables is fast. A table
+ * is accessed before its file is deleted by compaction, so the mapping always succeeds.
+ */
 public final class SSTable implements Table {
 
-    @NotNull private final LongBuffer offsets;
-    @NotNull private final ByteBuffer rows;
-    private final long rowsNumber;
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    static final int VERSION = 7;
+    static final long MAGIC = 0x53535461626C6531L;
+    static final int FOOTER_SIZE = Long.BYTES * 7 + Integer.BYTES * 5 + Long.BYTES;
+    static final int INDEX_ENTRY_HEADER = Long.BYTES + Integer.BYTES * 3;
+    static final int BLOCK_HEADER = 1;
+    static final byte RAW = 0;
+    static final byte COMPRESSED = 1;
+    private static final AtomicLong IDS = new AtomicLong();
+
+    @NotNull private final Path path;
+    @NotNull private final Codec codec;
+    @NotNull private final BlockCache blockCache;
+    private final long id = IDS.getAndIncrement();
+    private final long indexOffset;
+    private final long bloomOffset;
+    private final int bloomWords;
+    private final int bloomHashes;
+    private final int blocksNumber;
     private final long serialNumber;
     private final long sizeInBytes;
+    private final long rowsNumber;
+    private final long tombstonesNumber;
+    private final long oldestTombstoneTimestamp;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    @Nullable private volatile Mapping mapping;
+
+    /**
+     * Mapped contents of the file.
+     */
+    private static final class Mapping {
+        @NotNull final ByteBuffer[] segments;
+        @NotNull final ByteBuffer index;
+        @NotNull final BloomFilter bloomFilter;
+        final int entriesPosition;
+
+        Mapping(@NotNull final ByteBuffer[] segments,
+                @NotNull final ByteBuffer index,
+                @NotNull final BloomFilter bloomFilter,
+                final int entriesPosition) {
+            this.segments = segments;
+            this.index = index;
+            this.bloomFilter = bloomFilter;
+            this.entriesPosition = entriesPosition;
+        }
+    }
 
     /**
      * Constructs a new SSTable.
      *
      * @param path the path of the file where data of SSTable is stored
      * @param serialNumber the serial number of SStable
+     * @param codec the codec the storage is configured with
+     * @param blockCache cache for decoded blocks
      * @throws IOException if an I/O error occurs
      * @throws IllegalArgumentException if serial number less than 0
      */
     public SSTable(@NotNull final Path path,
-                   final long serialNumber) throws IOException, IllegalArgumentException {
+                   final long serialNumber,
+                   @NotNull final Codec codec,
+                   @NotNull final BlockCache blockCache) throws IOException, IllegalArgumentException {
         if (serialNumber < 0) {
             throw new IllegalArgumentException("Serial number must not be less than 0");
         }
+        this.path = path;
         this.serialNumber = serialNumber;
+        this.blockCache = blockCache;
         try (var fc = FileChannel.open(path, StandardOpenOption.READ)) {
             this.sizeInBytes = fc.size();
-            final var mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size())
+            if (sizeInBytes < FOOTER_SIZE) {
+                throw new IOException("SSTable " + path + " is too small");
+            }
+            final var footer = fc.map(FileChannel.MapMode.READ_ONLY, sizeInBytes - FOOTER_SIZE, FOOTER_SIZE)
                     .order(ByteOrder.BIG_ENDIAN);
-            this.rowsNumber = mapped.getLong(mapped.limit() - Long.BYTES);
-
-            final var offsetsBuffer = mapped.duplicate()
-                    .position((int) (mapped.limit() - Long.BYTES - Long.BYTES * rowsNumber))
-                    .limit(mapped.limit() - Long.BYTES);
-            this.offsets = offsetsBuffer.slice().asLongBuffer();
-
-            this.rows = mapped.asReadOnlyBuffer()
-                    .limit(offsetsBuffer.position())
-                    .slice();
+            this.indexOffset = footer.getLong();
+            this.bloomOffset = footer.getLong();
+            this.rowsNumber = footer.getLong();
+            this.tombstonesNumber = footer.getLong();
+            this.oldestTombstoneTimestamp = footer.getLong();
+            this.minTimestamp = footer.getLong();
+            this.maxTimestamp = footer.getLong();
+            this.blocksNumber = footer.getInt();
+            this.bloomWords = footer.getInt();
+            this.bloomHashes = footer.getInt();
+            final int codecId = footer.getInt();
+            final int version = footer.getInt();
+            if (footer.getLong() != MAGIC || version != VERSION) {
+                throw new IOException("Unsupported format of SSTable " + path);
+            }
+            this.codec = Codec.of(codecId, codec);
         }
     }
 
+    /**
+     * Maps the file on first call.
+     *
+     * @throws UncheckedIOException if the file can't be mapped
+     */
     @NotNull
-    private ByteBuffer rowAt(final long offsetPosition) {
-        final long offset = offsets.get((int) offsetPosition);
-        final long rowSize = (offsetPosition == rowsNumber - 1)
-                ? rows.limit() - offset
-                : offsets.get((int) (offsetPosition + 1)) - offset;
-        return rows.asReadOnlyBuffer()
-                .position((int) offset)
-                .limit((int) (rowSize + offset))
-                .slice();
+    private Mapping mapping() {
+        var result = mapping;
+        if (result == null) {
+            synchronized (this) {
+                result = mapping;
+                if (result == null) {
+                    try {
+                        result = map();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Can't map SSTable " + path, e);
+                    }
+                    mapping = result;
+                }
+            }
+        }
+        return result;
     }
 
     @NotNull
-    private ByteBuffer keyAt(@NotNull final ByteBuffer row) {
-        final var rowBuffer = row.asReadOnlyBuffer();
-        final int keySize = rowBuffer.getInt();
-        return rowBuffer.limit(keySize + Integer.BYTES)
-                .slice();
+    private Mapping map() throws IOException {
+        try (var fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            final var index = fc.map(FileChannel.MapMode.READ_ONLY, indexOffset, bloomOffset - indexOffset)
+                    .asReadOnlyBuffer();
+            final var bloomFilter = BloomFilter.of(
+                    fc.map(FileChannel.MapMode.READ_ONLY, bloomOffset, (long) bloomWords * Long.BYTES)
+                            .asLongBuffer(),
+                    bloomHashes);
+            final int segmentsNumber = (int) ((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            final var segments = new ByteBuffer[segmentsNumber];
+            for (int i = 0; i < segmentsNumber; i++) {
+                final long start = i * SEGMENT_SIZE;
+                final long size = Math.min(SEGMENT_SIZE, indexOffset - start);
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, size).asReadOnlyBuffer();
+            }
+            return new Mapping(segments, index, bloomFilter, index.limit() - Integer.BYTES * blocksNumber);
+        }
     }
 
-    private long timestampAt(@NotNull final ByteBuffer row) {
-        final var rowBuffer = row.asReadOnlyBuffer();
-        final int keySize = rowBuffer.getInt();
-        return rowBuffer.position(keySize + Integer.BYTES)
-                .getLong();
+    private static int indexEntry(@NotNull final Mapping mapping,
+                                  final int block) {
+        return mapping.index.getInt(mapping.entriesPosition + block * Integer.BYTES);
     }
 
+    /**
+     * Returns the rows of the block, decompressing them if needed.
+     * Decoded blocks are kept in the block cache, so hot blocks
+     * don't depend on the page cache.
+     *
+     * @throws UncheckedIOException if the block is corrupted
+     */
     @NotNull
-    private ByteBuffer valueAt(@NotNull final ByteBuffer row) {
-        final var rowBuffer = row.asReadOnlyBuffer();
-        final int keySize = rowBuffer.getInt();
-        return rowBuffer.position(keySize + Integer.BYTES + Long.BYTES * 2)
+    private ByteBuffer block(final int block) {
+        final var cached = blockCache.get(id, block);
+        if (cached != null) {
+            return cached;
+        }
+        final var mapping = mapping();
+        final var index = mapping.index;
+        final int entry = indexEntry(mapping, block);
+        final long offset = index.getLong(entry);
+        final int size = index.getInt(entry + Long.BYTES);
+        final int position = (int) (offset % SEGMENT_SIZE);
+        final var segment = mapping.segments[(int) (offset / SEGMENT_SIZE)];
+        final var stored = segment.duplicate()
+                .position(position + BLOCK_HEADER)
+                .limit(position + size)
                 .slice();
+        if (segment.get(position) == RAW) {
+            blockCache.put(id, block, stored);
+            return stored;
+        }
+        final var raw = ByteBuffer.allocate(index.getInt(entry + Long.BYTES + Integer.BYTES));
+        try {
+            codec.decompress(stored, raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't decompress block " + block + " of SSTable " + serialNumber, e);
+        }
+        raw.flip();
+        blockCache.put(id, block, raw);
+        return raw.asReadOnlyBuffer();
     }
 
-    @NotNull
-    private Row transform(final long offsetPosition) {
-        final var row = rowAt(offsetPosition);
-        final var key = keyAt(row);
-        final var timestamp = timestampAt(row);
-        final var value = timestamp < 0
-                ? Cell.tombstone(-timestamp)
-                : Cell.of(timestamp, valueAt(row));
-        return Row.of(key, value, serialNumber);
-    }
-
-    private long position(@NotNull final ByteBuffer key) {
-        long left = 0;
-        long right = rowsNumber - 1;
+    /**
+     * Finds the only block which may contain the key,
+     * i.e. the last block whose separator is not greater than {@code key}.
+     * If the key falls between the separator and the first key of the block,
+     * it falls between the blocks and the block is still the right place to seek.
+     */
+    private int blockFor(@NotNull final ByteBuffer key) {
+        final var mapping = mapping();
+        final var index = mapping.index;
+        int left = 0;
+        int right = blocksNumber - 1;
         while (left <= right) {
-            final long mid = (left + right) >>> 1;
-            final int cmp = keyAt(rowAt(mid)).compareTo(key);
+            final int mid = (left + right) >>> 1;
+            final int entry = indexEntry(mapping, mid);
+            final int cmp = compareKeys(
+                    index, entry + INDEX_ENTRY_HEADER, index.getInt(entry + Long.BYTES + Integer.BYTES * 2), key);
             if (cmp < 0) {
                 left = mid + 1;
             } else if (cmp > 0) {
@@ -111,7 +253,26 @@ public final class SSTable implements Table {
                 return mid;
             }
         }
-        return left;
+        return Math.max(left - 1, 0);
+    }
+
+    /**
+     * Compares {@code size} bytes of the buffer at the given position with {@code key}
+     * in place, i.e. without slicing the buffer.
+     */
+    private static int compareKeys(@NotNull final ByteBuffer buffer,
+                                   final int position,
+                                   final int size,
+                                   @NotNull final ByteBuffer key) {
+        final int keyFrom = key.position();
+        final int length = Math.min(size, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(buffer.get(position + i), key.get(keyFrom + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return size - key.remaining();
     }
 
     @NotNull
@@ -120,6 +281,31 @@ public final class SSTable implements Table {
         return new SSTableIterator(from);
     }
 
+    @NotNull
+    @Override
+    public Iterator<Row> descendingIterator(@Nullable final ByteBuffer to) {
+        return new DescendingSSTableIterator(to);
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final var cursor = new BlockCursor(block(blockFor(key)));
+        cursor.seek(key);
+        if (cursor.isValid() && cursor.compareKey(key) == 0) {
+            return cursor.row(serialNumber);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return blocksNumber > 0 && mapping().bloomFilter.mightContain(key);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value) throws IOException {
@@ -141,16 +327,136 @@ public final class SSTable implements Table {
         return serialNumber;
     }
 
+    public long rowsNumber() {
+        return rowsNumber;
+    }
+
+    public long tombstonesNumber() {
+        return tombstonesNumber;
+    }
+
+    /**
+     * Returns the timestamp of the oldest tombstone of the table.
+     *
+     * @return the timestamp or {@link Long#MAX_VALUE} if there are no tombstones
+     */
+    public long oldestTombstoneTimestamp() {
+        return oldestTombstoneTimestamp;
+    }
+
+    /**
+     * Returns the oldest timestamp of the values and the tombstones of the table.
+     *
+     * @return the timestamp or {@link Long#MAX_VALUE} if the table is empty
+     */
+    @Override
+    public long minTimestamp() {
+        return minTimestamp;
+    }
+
+    /**
+     * Returns the newest timestamp of the values and the tombstones of the table.
+     *
+     * @return the timestamp or {@link Long#MIN_VALUE} if the table is empty
+     */
+    @Override
+    public long maxTimestamp() {
+        return maxTimestamp;
+    }
+
     private class SSTableIterator implements Iterator<Row> {
-        private long position;
+        private int blockIndex;
+        private BlockCursor cursor;
 
         SSTableIterator(@NotNull final ByteBuffer from) {
-            this.position = position(from);
+            if (blocksNumber == 0) {
+                return;
+            }
+            this.blockIndex = blockFor(from);
+            this.cursor = new BlockCursor(block(blockIndex));
+            cursor.seek(from);
+            skipExhaustedBlock();
+        }
+
+        private void skipExhaustedBlock() {
+            if (!cursor.isValid() && blockIndex + 1 < blocksNumber) {
+                blockIndex++;
+                cursor = new BlockCursor(block(blockIndex));
+                cursor.seekToFirst();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor != null && cursor.isValid();
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final var result = cursor.row(serialNumber);
+            cursor.next();
+            skipExhaustedBlock();
+            return result;
+        }
+    }
+
+    /**
+     * Iterates the rows backwards: the blocks are walked by the index from the last one,
+     * and since the keys of a block are delta encoded forwards, the rows of a restart interval
+     * are read from its restart point on and then returned in reverse order.
+     */
+    private class DescendingSSTableIterator implements Iterator<Row> {
+        /** Rows of the current restart interval, the next row is the last one. */
+        private final List<Row> rows = new ArrayList<>(BlockBuilder.RESTART_INTERVAL);
+        private int blockIndex;
+        private int restart;
+        private BlockCursor cursor;
+
+        DescendingSSTableIterator(@Nullable final ByteBuffer to) {
+            if (blocksNumber == 0) {
+                return;
+            }
+            if (to == null) {
+                this.blockIndex = blocksNumber - 1;
+                this.cursor = new BlockCursor(block(blockIndex));
+                this.restart = cursor.restartsNumber() - 1;
+            } else {
+                this.blockIndex = blockFor(to);
+                this.cursor = new BlockCursor(block(blockIndex));
+                this.restart = cursor.restartBefore(to);
+            }
+            readInterval(to);
+        }
+
+        /**
+         * Reads the rows of the current restart interval with keys less than {@code to},
+         * moving to the previous block if the current one is exhausted.
+         */
+        private void readInterval(@Nullable final ByteBuffer to) {
+            while (rows.isEmpty()) {
+                if (restart >= 0) {
+                    cursor.seekToRestart(restart);
+                    while (cursor.isBefore(restart + 1) && (to == null || cursor.compareKey(to) < 0)) {
+                        rows.add(cursor.row(serialNumber));
+                        cursor.next();
+                    }
+                    restart--;
+                } else if (blockIndex > 0) {
+                    blockIndex--;
+                    cursor = new BlockCursor(block(blockIndex));
+                    restart = cursor.restartsNumber() - 1;
+                } else {
+                    return;
+                }
+            }
         }
 
         @Override
         public boolean hasNext() {
-            return position < rowsNumber;
+            return !rows.isEmpty();
         }
 
         @Override
@@ -158,9 +464,9 @@ public final class SSTable implements Table {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            final var row = transform(position);
-            position++;
-            return row;
+            final var result = rows.remove(rows.size() - 1);
+            readInterval(null);
+            return result;
         }
     }
 
@@ -169,44 +475,33 @@ public final class SSTable implements Table {
      *
      * @param flushedFile the path of the file to which the data is flushed
      * @param rowsIterator the iterator to flush rows ({@link Row}
+     * @param codec the codec to compress blocks with
+     * @throws IOException if an I/O error occurs
+     */
+    public static void flush(@NotNull final Path flushedFile,
+                             @NotNull final Iterator<Row> rowsIterator,
+                             @NotNull final Codec codec) throws IOException {
+        flush(flushedFile, rowsIterator, codec, false);
+    }
+
+    /**
+     * Flush of data to disk as SSTable.
+     *
+     * @param flushedFile the path of the file to which the data is flushed
+     * @param rowsIterator the iterator to flush rows ({@link Row}
+     * @param codec the codec to compress blocks with
+     * @param fsync whether to force the file to the storage device
      * @throws IOException if an I/O error occurs
      */
     public static void flush(@NotNull final Path flushedFile,
-                             @NotNull final Iterator<Row> rowsIterator) throws IOException {
-        long offset = 0L;
-        final var offsets = new ArrayList<Long>();
-        offsets.add(offset);
-        try (var fc = FileChannel.open(
-                flushedFile,
-                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                             @NotNull final Iterator<Row> rowsIterator,
+                             @NotNull final Codec codec,
+                             final boolean fsync) throws IOException {
+        try (var writer = new SSTableWriter(flushedFile, codec, fsync)) {
             while (rowsIterator.hasNext()) {
-                final var row = rowsIterator.next();
-                final var key = row.getKey();
-                final var cell = row.getCell();
-                final var sizeRow = Row.getSizeOfFlushedRow(key, cell.getData());
-                final var rowBuffer = ByteBuffer.allocate((int) sizeRow)
-                        .putInt(key.remaining())
-                        .put(key.duplicate())
-                        .putLong(cell.getTimestamp());
-                if (!cell.isRemoved() && cell.getData().remaining() != 0) {
-                    final var data = cell.getData();
-                    rowBuffer.putLong(data.remaining())
-                            .put(data.duplicate());
-                }
-                offset += sizeRow;
-                offsets.add(offset);
-                rowBuffer.flip();
-                fc.write(rowBuffer);
-            }
-            offsets.remove(offsets.size() - 1);
-            final var offsetsBuffer = ByteBuffer.allocate(
-                    offsets.size() * Long.BYTES + Long.BYTES);
-            for (final var anOffset: offsets) {
-                offsetsBuffer.putLong(anOffset);
+                writer.add(rowsIterator.next());
             }
-            offsetsBuffer.putLong(offsets.size())
-                    .flip();
-            fc.write(offsetsBuffer);
+            writer.finish();
         }
     }
 }
@@ -0,0 +1,256 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static ru.mail.polis.dao.shakhmin.SSTable.BLOCK_HEADER;
+import static ru.mail.polis.dao.shakhmin.SSTable.BLOCK_SIZE;
+import static ru.mail.polis.dao.shakhmin.SSTable.COMPRESSED;
+import static ru.mail.polis.dao.shakhmin.SSTable.FOOTER_SIZE;
+import static ru.mail.polis.dao.shakhmin.SSTable.INDEX_ENTRY_HEADER;
+import static ru.mail.polis.dao.shakhmin.SSTable.MAGIC;
+import static ru.mail.polis.dao.shakhmin.SSTable.RAW;
+import static ru.mail.polis.dao.shakhmin.SSTable.SEGMENT_SIZE;
+import static ru.mail.polis.dao.shakhmin.SSTable.VERSION;
+
+/**
+ * Writes sorted rows to a file in the {@link SSTable} format.
+ *
+ * <p>Blocks are encoded and compressed right into a large direct buffer,
+ * which is written to the file in big sequential chunks when it fills up.
+ * The buffer is reused by all the writers of a thread, so a thread must not
+ * write several tables at once. The index and the keys hashes for the bloom filter
+ * are accumulated in primitive arrays and written after the blocks.
+ */
+final class SSTableWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    @NotNull private final FileChannel fc;
+    @NotNull private final Codec codec;
+    private final boolean fsync;
+    @NotNull private final ByteBuffer buffer;
+    @NotNull private final BlockBuilder block = new BlockBuilder(BLOCK_SIZE * 2);
+    @NotNull private ByteBuffer index = ByteBuffer.allocate(BLOCK_SIZE);
+    @NotNull private int[] entries = new int[16];
+    @NotNull private long[] hashes = new long[64];
+    @NotNull private byte[] previousKey = new byte[64];
+    private int previousKeySize;
+    private int blocksNumber;
+    private int rowsNumber;
+    private long tombstonesNumber;
+    private long oldestTombstoneTimestamp = Long.MAX_VALUE;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long written;
+
+    /**
+     * Creates a new table file.
+     *
+     * @param path the path of the file, it must not exist
+     * @param codec the codec to compress blocks with
+     * @param fsync whether to force the file to the storage device on {@link #finish()}
+     * @throws IOException if an I/O error occurs
+     */
+    SSTableWriter(@NotNull final Path path,
+                  @NotNull final Codec codec,
+                  final boolean fsync) throws IOException {
+        this.fc = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.codec = codec;
+        this.fsync = fsync;
+        this.buffer = BUFFERS.get().clear();
+    }
+
+    /**
+     * Appends the row, rows must be added in the order of keys.
+     *
+     * @param row row to add
+     * @throws IOException if an I/O error occurs
+     */
+    void add(@NotNull final Row row) throws IOException {
+        final var key = row.getKey();
+        if (block.isEmpty()) {
+            if (blocksNumber == entries.length) {
+                entries = Arrays.copyOf(entries, blocksNumber * 2);
+            }
+            final int separatorSize = blocksNumber == 0 ? 0 : separatorSize(key);
+            index = ensureCapacity(index, INDEX_ENTRY_HEADER + separatorSize);
+            entries[blocksNumber++] = index.position();
+            index.putLong(0L)
+                    .putInt(0)
+                    .putInt(0)
+                    .putInt(separatorSize)
+                    .put(key.duplicate().limit(key.position() + separatorSize));
+        }
+        final var cell = row.getCell();
+        block.add(key, cell);
+        if (cell.isRemoved()) {
+            tombstonesNumber++;
+            oldestTombstoneTimestamp = Math.min(oldestTombstoneTimestamp, -cell.getTimestamp());
+        }
+        minTimestamp = Math.min(minTimestamp, Math.abs(cell.getTimestamp()));
+        maxTimestamp = Math.max(maxTimestamp, Math.abs(cell.getTimestamp()));
+        if (rowsNumber == hashes.length) {
+            hashes = Arrays.copyOf(hashes, rowsNumber * 2);
+        }
+        hashes[rowsNumber++] = BloomFilter.hash(key);
+        if (block.sizeInBytes() >= BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the rest of the table: the last block, the index, the bloom filter and the footer.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void finish() throws IOException {
+        if (!block.isEmpty()) {
+            writeBlock();
+        }
+        final var bloomFilter = BloomFilter.create(hashes, rowsNumber);
+        index = ensureCapacity(index,
+                blocksNumber * Integer.BYTES + bloomFilter.wordsNumber() * Long.BYTES + FOOTER_SIZE);
+        for (int i = 0; i < blocksNumber; i++) {
+            index.putInt(entries[i]);
+        }
+        final long indexOffset = position();
+        final long bloomOffset = indexOffset + index.position();
+        bloomFilter.writeTo(index);
+        index.putLong(indexOffset)
+                .putLong(bloomOffset)
+                .putLong(rowsNumber)
+                .putLong(tombstonesNumber)
+                .putLong(oldestTombstoneTimestamp)
+                .putLong(minTimestamp)
+                .putLong(maxTimestamp)
+                .putInt(blocksNumber)
+                .putInt(bloomFilter.wordsNumber())
+                .putInt(bloomFilter.hashesNumber())
+                .putInt(codec.id())
+                .putInt(VERSION)
+                .putLong(MAGIC)
+                .flip();
+        write(index);
+        drain();
+        if (fsync) {
+            fc.force(true);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+
+    private long position() {
+        return written + buffer.position();
+    }
+
+    /**
+     * Writes the block, compressed if it makes the block smaller,
+     * moving it to the next segment if the block may not fit into the current one.
+     */
+    private void writeBlock() throws IOException {
+        final var raw = block.finish();
+        final int rawSize = raw.remaining();
+        final int maxSize = BLOCK_HEADER + rawSize;
+        if (maxSize > SEGMENT_SIZE) {
+            throw new IOException("Block of " + maxSize + " bytes doesn't fit into a segment");
+        }
+        final long segmentRemaining = SEGMENT_SIZE - position() % SEGMENT_SIZE;
+        if (maxSize > segmentRemaining) {
+            // Skipped bytes become a hole read as zeros
+            drain();
+            written += segmentRemaining;
+            fc.position(written);
+        }
+        final long offset = position();
+        if (buffer.remaining() < maxSize) {
+            drain();
+        }
+        final var target = buffer.remaining() < maxSize ? ByteBuffer.allocate(maxSize) : buffer;
+        final int start = target.position();
+        target.put(RAW);
+        boolean compressed = false;
+        if (codec != Codec.NONE) {
+            final var dst = target.duplicate().limit(start + rawSize);
+            compressed = codec.compress(raw.duplicate(), dst);
+            if (compressed) {
+                target.put(start, COMPRESSED).position(dst.position());
+            }
+        }
+        if (!compressed) {
+            target.put(raw);
+        }
+        final int size = target.position() - start;
+        if (target != buffer) {
+            writeFully(target.flip());
+        }
+        final int entry = entries[blocksNumber - 1];
+        index.putLong(entry, offset)
+                .putInt(entry + Long.BYTES, size)
+                .putInt(entry + Long.BYTES + Integer.BYTES, rawSize);
+        final var lastKey = block.lastKey();
+        previousKeySize = lastKey.remaining();
+        if (previousKey.length < previousKeySize) {
+            previousKey = new byte[previousKeySize];
+        }
+        lastKey.get(previousKey, 0, previousKeySize);
+        block.reset();
+    }
+
+    /**
+     * Computes the length of the shortest prefix of the key which is greater
+     * than the last key of the previous block.
+     */
+    private int separatorSize(@NotNull final ByteBuffer key) {
+        final int keyFrom = key.position();
+        final int length = Math.min(previousKeySize, key.remaining());
+        int common = 0;
+        while (common < length && previousKey[common] == key.get(keyFrom + common)) {
+            common++;
+        }
+        return Math.min(common + 1, key.remaining());
+    }
+
+    private void write(@NotNull final ByteBuffer src) throws IOException {
+        if (src.remaining() > buffer.remaining()) {
+            drain();
+        }
+        if (src.remaining() > buffer.remaining()) {
+            writeFully(src);
+        } else {
+            buffer.put(src);
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(@NotNull final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            written += fc.write(src);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer ensureCapacity(@NotNull final ByteBuffer buffer,
+                                             final int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+        return ByteBuffer.allocate(capacity).put(buffer.flip());
+    }
+}
@@ -0,0 +1,306 @@
+package ru.mail.polis.dao.shakhmin;
+
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.dao.WriteBatch;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A storage which splits the keys by hash between independent {@link LSMDao} shards,
+ * each with its own directory, memory tables, flushers and compactor. So flushes and
+ * compactions of different shards run in parallel, and a compaction rewrites only
+ * a part of the data.
+ *
+ * <p>A key always belongs to the same shard, so the shards never have common keys
+ * and a range is just a merge of the ranges of the shards. The number of shards is fixed
+ * when the storage is created, opening it with a different one fails. The shards share a clock,
+ * so the timestamps of the storage grow whatever shard a write goes to.
+ */
+public final class ShardedDao implements CellDao {
+    private static final Logger log = LoggerFactory.getLogger(ShardedDao.class);
+
+    private static final String SHARD_PREFIX = "shard_";
+    private static final Pattern SHARD_NAME = Pattern.compile(SHARD_PREFIX + "\\d+");
+
+    @NotNull private final List<LSMDao> shards;
+
+    public static class Builder {
+        @NotNull private final File dir;
+
+        private int shardsNumber = 1;
+        @NotNull private Function<File, LSMDao.Builder> shardBuilder = LSMDao.Builder::new;
+
+        public Builder(@NotNull final File dir) {
+            this.dir = dir;
+        }
+
+        public Builder shards(final int shardsNumber) {
+            this.shardsNumber = shardsNumber;
+            return this;
+        }
+
+        /**
+         * Sets the configuration of the shards, the sizes of the caches and of the memory
+         * tables are per shard.
+         *
+         * @param shardBuilder creates a builder of a shard stored in the given directory
+         * @return this builder
+         */
+        public Builder shardBuilder(@NotNull final Function<File, LSMDao.Builder> shardBuilder) {
+            this.shardBuilder = shardBuilder;
+            return this;
+        }
+
+        public ShardedDao build() throws IOException {
+            return new ShardedDao(this);
+        }
+    }
+
+    private ShardedDao(@NotNull final Builder builder) throws IOException {
+        if (builder.shardsNumber < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive: " + builder.shardsNumber);
+        }
+        if (Files.exists(builder.dir.toPath().resolve(Manifest.NAME))) {
+            throw new IllegalStateException("Not a sharded storage: " + builder.dir);
+        }
+        final var existing = builder.dir.list((dir, name) -> SHARD_NAME.matcher(name).matches());
+        if (existing != null && existing.length != 0 && existing.length != builder.shardsNumber) {
+            throw new IllegalStateException(
+                    "Storage has " + existing.length + " shards, but " + builder.shardsNumber + " requested");
+        }
+        this.shards = new ArrayList<>(builder.shardsNumber);
+        final var clock = new HybridClock();
+        try {
+            for (int i = 0; i < builder.shardsNumber; i++) {
+                final var dir = new File(builder.dir, SHARD_PREFIX + i);
+                Files.createDirectories(dir.toPath());
+                shards.add(builder.shardBuilder.apply(dir).clock(clock).build());
+            }
+        } catch (IOException | RuntimeException e) {
+            close(shards, e);
+            throw e;
+        }
+        log.info("Opened {} shards", shards.size());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final var iterators = new ArrayList<Iterator<Record>>(shards.size());
+        for (final var shard : shards) {
+            iterators.add(shard.iterator(from));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+        final var iterators = new ArrayList<Iterator<Record>>(shards.size());
+        for (final var shard : shards) {
+            iterators.add(shard.descendingRange(from, to));
+        }
+        return Iterators.mergeSorted(iterators, Comparator.reverseOrder());
+    }
+
+    @Nullable
+    @Override
+    public Cell getCell(@NotNull final ByteBuffer key) throws IOException {
+        return shard(key).getCell(key);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value) throws IOException {
+        shard(key).upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        shard(key).remove(key);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long timestamp) throws IOException {
+        shard(key).upsert(key, value, timestamp);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       final long timestamp) throws IOException {
+        shard(key).remove(key, timestamp);
+    }
+
+    /**
+     * Splits the batch between the shards, so it is applied atomically within each shard,
+     * but not across them.
+     *
+     * @param batch writes
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void applyBatch(@NotNull final WriteBatch batch) throws IOException {
+        final var batches = split(batch);
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                shards.get(i).applyBatch(batches[i]);
+            }
+        }
+    }
+
+    @Override
+    public void applyBatch(@NotNull final WriteBatch batch,
+                           final long timestamp) throws IOException {
+        final var batches = split(batch);
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                shards.get(i).applyBatch(batches[i], timestamp);
+            }
+        }
+    }
+
+    /**
+     * Returns the writes of the batch by the shards, null if a shard has none.
+     */
+    @NotNull
+    private WriteBatch[] split(@NotNull final WriteBatch batch) {
+        final var batches = new WriteBatch[shards.size()];
+        for (final var write : batch.writes()) {
+            final int shard = shardIndex(write.getKey());
+            if (batches[shard] == null) {
+                batches[shard] = new WriteBatch();
+            }
+            batches[shard].add(write);
+        }
+        return batches;
+    }
+
+    /**
+     * Takes a snapshot of each shard. Like a batch, a snapshot is consistent within each shard,
+     * but not across them: a write may be seen by the snapshot of its shard while another write,
+     * done before it to another shard, is not seen.
+     *
+     * @return snapshot to be closed
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final var snapshots = new ArrayList<Snapshot>(shards.size());
+        try {
+            for (final var shard : shards) {
+                snapshots.add(shard.snapshot());
+            }
+        } catch (RuntimeException e) {
+            snapshots.forEach(Snapshot::close);
+            throw e;
+        }
+        return new Snapshot() {
+            @NotNull
+            @Override
+            public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+                final var iterators = new ArrayList<Iterator<Record>>(snapshots.size());
+                for (final var snapshot : snapshots) {
+                    iterators.add(snapshot.iterator(from));
+                }
+                return Iterators.mergeSorted(iterators, Comparator.naturalOrder());
+            }
+
+            @NotNull
+            @Override
+            public Iterator<Record> descendingRange(@NotNull final ByteBuffer from,
+                                                    @Nullable final ByteBuffer to) throws IOException {
+                final var iterators = new ArrayList<Iterator<Record>>(snapshots.size());
+                for (final var snapshot : snapshots) {
+                    iterators.add(snapshot.descendingRange(from, to));
+                }
+                return Iterators.mergeSorted(iterators, Comparator.reverseOrder());
+            }
+
+            @Override
+            public void close() {
+                snapshots.forEach(Snapshot::close);
+            }
+        };
+    }
+
+    /**
+     * Compacts the shards one by one, so a major compaction never rewrites
+     * more than a shard at a time.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void compact() throws IOException {
+        for (final var shard : shards) {
+            shard.compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(shards, null);
+    }
+
+    /**
+     * Closes all the shards even if some of them fail to.
+     *
+     * @param shards shards to close
+     * @param cause exception to add the failures to, if any
+     * @throws IOException the first failure if there is no cause
+     */
+    private static void close(@NotNull final List<? extends DAO> shards,
+                              @Nullable final Exception cause) throws IOException {
+        IOException failure = null;
+        for (final var shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (cause != null) {
+                    cause.addSuppressed(e);
+                } else if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @NotNull
+    private LSMDao shard(@NotNull final ByteBuffer key) {
+        return shards.get(shardIndex(key));
+    }
+
+    private int shardIndex(@NotNull final ByteBuffer key) {
+        return Hashing.consistentHash(key.hashCode(), shards.size());
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.util.Collections;
+import java.util.NavigableMap;
+
+/**
+ * Merges runs of tables of similar size.
+ *
+ * <p>Neighbouring tables fall into the same tier while their sizes stay within
+ * {@code [average / 2, average * 3 / 2]} of the tier, tables smaller than
+ * {@link #MIN_TABLE_SIZE} all belong to one tier. The largest tier of at least
+ * {@code minThreshold} tables is merged, at most {@code maxThreshold} tables at once.
+ * Each merge roughly multiplies the size of a table, so a row is rewritten
+ * a logarithmic number of times.
+ */
+public final class SizeTieredCompactionStrategy implements CompactionStrategy {
+    static final long MIN_TABLE_SIZE = 1024 * 1024;
+    private static final int DEFAULT_MIN_THRESHOLD = 4;
+    private static final int DEFAULT_MAX_THRESHOLD = 32;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    public SizeTieredCompactionStrategy() {
+        this(DEFAULT_MIN_THRESHOLD, DEFAULT_MAX_THRESHOLD);
+    }
+
+    /**
+     * Constructs a new strategy.
+     *
+     * @param minThreshold minimum number of tables in a tier to merge it
+     * @param maxThreshold maximum number of tables to merge at once
+     */
+    public SizeTieredCompactionStrategy(final int minThreshold,
+                                        final int maxThreshold) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Wrong thresholds: " + minThreshold + ", " + maxThreshold);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+    }
+
+    @NotNull
+    @Override
+    public NavigableMap<Long, Table> select(@NotNull final NavigableMap<Long, Table> tables) {
+        Long bestFirst = null;
+        Long bestLast = null;
+        int bestCount = 0;
+        Long first = null;
+        Long last = null;
+        int count = 0;
+        long tierSize = 0;
+        for (final var table : tables.values()) {
+            final long size = Math.max(table.sizeInBytes(), MIN_TABLE_SIZE);
+            final long average = count == 0 ? size : tierSize / count;
+            if (count == 0 || count == maxThreshold || size < average / 2 || size > average * 3 / 2) {
+                first = table.serialNumber();
+                count = 0;
+                tierSize = 0;
+            }
+            last = table.serialNumber();
+            count++;
+            tierSize += size;
+            if (count >= minThreshold && count >= bestCount) {
+                bestFirst = first;
+                bestLast = last;
+                bestCount = count;
+            }
+        }
+        if (bestFirst == null) {
+            return Collections.emptyNavigableMap();
+        }
+        return tables.subMap(bestFirst, true, bestLast, true);
+    }
+}
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.NavigableMap;
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.Iters;
 
 /**
@@ -20,16 +21,89 @@ public interface Table {
     @NotNull
     Iterator<Row> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Returns the rows with keys less than the given one in descending order of keys,
+     * so the tail of a range is read without scanning the range from its start.
+     *
+     * @param to key to start before (exclusive) or null to start at the last row
+     * @return rows in descending order of keys
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull
+    Iterator<Row> descendingIterator(@Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Finds the row with exactly the given key.
+     *
+     * @param key key
+     * @return the row (possibly a tombstone) or null if the table doesn't contain the key
+     * @throws IOException if an I/O error occurs
+     */
+    @Nullable
+    Row get(@NotNull ByteBuffer key) throws IOException;
+
     void upsert(
             @NotNull ByteBuffer key,
             @NotNull ByteBuffer value) throws IOException;
 
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Checks whether the table may contain a row with the given key.
+     * False positives are allowed, false negatives are not.
+     *
+     * @param key key
+     * @return false if the table definitely doesn't contain the key
+     */
+    default boolean mightContain(@NotNull final ByteBuffer key) {
+        return true;
+    }
+
+    /**
+     * Returns a timestamp not older than any cell of the table, so a lookup can skip the table
+     * once it has found a newer cell. Writes keep the timestamps the coordinators assigned,
+     * so a newer table may hold an older cell of a key and the newest table isn't always right.
+     *
+     * @return upper bound of the timestamps of the table
+     */
+    default long maxTimestamp() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns a timestamp not newer than any cell of the table, so compaction can tell
+     * whether a tombstone may still shadow an older cell of the table.
+     *
+     * @return lower bound of the timestamps of the table
+     */
+    default long minTimestamp() {
+        return Long.MIN_VALUE;
+    }
+
     long sizeInBytes();
 
     long serialNumber();
 
+    /**
+     * Returns the row with the newer cell, a tie goes to the row found first,
+     * i.e. to the one of the newer table if the tables are probed from the newest one.
+     *
+     * @param found row found so far
+     * @param candidate row of the next table
+     * @return the newer row or null if both are null
+     */
+    @Nullable
+    static Row newer(@Nullable final Row found,
+                     @Nullable final Row candidate) {
+        if (found == null) {
+            return candidate;
+        }
+        if (candidate == null) {
+            return found;
+        }
+        return candidate.getCell().compareTo(found.getCell()) < 0 ? candidate : found;
+    }
+
     /**
      * Join table iterators.
      *
@@ -40,7 +114,7 @@ public interface Table {
      * @throws IOException if an I/O error occurs
      */
     static List<Iterator<Row>> joinIterators(@NotNull final Table memTable,
-                                             @NotNull final NavigableMap<Long, Table> tables,
+                                             @NotNull final NavigableMap<Long, ? extends Table> tables,
                                              @NotNull final ByteBuffer from) throws IOException {
         final var memIterator = memTable.iterator(from);
         final var iterators = new ArrayList<Iterator<Row>>();
@@ -51,6 +125,26 @@ public interface Table {
         return iterators;
     }
 
+    /**
+     * Join descending table iterators, see {@link #joinIterators}.
+     *
+     * @param memTable memory table
+     * @param tables other tables with a serial number
+     * @param to key to start before (exclusive) or null to start at the last row
+     * @return list of descending iterators of all tables
+     * @throws IOException if an I/O error occurs
+     */
+    static List<Iterator<Row>> joinDescendingIterators(@NotNull final Table memTable,
+                                                       @NotNull final NavigableMap<Long, ? extends Table> tables,
+                                                       @Nullable final ByteBuffer to) throws IOException {
+        final var iterators = new ArrayList<Iterator<Row>>(1 + tables.size());
+        iterators.add(memTable.descendingIterator(to));
+        for (final var entity: tables.descendingMap().values()) {
+            iterators.add(entity.descendingIterator(to));
+        }
+        return iterators;
+    }
+
     /**
      * Returns an iterator over the merged collapsed
      * contents of all given {@code iterators}.
@@ -62,4 +156,16 @@ public interface Table {
         final var merged = Iterators.mergeSorted(iterators, Row::compareTo);
         return Iters.collapseEquals(merged, Row::getKey);
     }
+
+    /**
+     * Returns an iterator over the merged collapsed contents of the descending
+     * {@code iterators}, the newest row of a key wins just like in {@link #reduceIterators}.
+     *
+     * @param iterators list of descending iterators
+     * @return iterator of unique rows in descending order of keys
+     */
+    static Iterator<Row> reduceDescendingIterators(@NotNull final List<Iterator<Row>> iterators) {
+        final var merged = Iterators.mergeSorted(iterators, Row.DESCENDING_KEYS);
+        return Iters.collapseEquals(merged, Row::getKey);
+    }
 }
@@ -0,0 +1,68 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable versioned set of live SSTables keyed by serial number.
+ *
+ * <p>Flushes and compactions never modify a set, they publish a new one instead,
+ * so a reader holding a set sees every row exactly once regardless of
+ * the changes which are made while it reads.
+ */
+final class TableSet {
+
+    static final TableSet EMPTY = new TableSet(0, new TreeMap<>());
+
+    private final long version;
+    @NotNull private final NavigableMap<Long, Table> tables;
+
+    private TableSet(final long version,
+                     @NotNull final NavigableMap<Long, Table> tables) {
+        this.version = version;
+        this.tables = Collections.unmodifiableNavigableMap(tables);
+    }
+
+    /**
+     * Returns a set with the flushed table added.
+     *
+     * @param table table to add
+     * @return new set of the next version
+     */
+    @NotNull
+    TableSet add(@NotNull final Table table) {
+        final var next = new TreeMap<>(tables);
+        next.put(table.serialNumber(), table);
+        return new TableSet(version + 1, next);
+    }
+
+    /**
+     * Returns a set with the compacted tables replaced by the result of their merge.
+     *
+     * @param compacted tables which have been merged
+     * @param merged result of the merge
+     * @return new set of the next version
+     */
+    @NotNull
+    TableSet replace(@NotNull final NavigableMap<Long, Table> compacted,
+                     @NotNull final Table merged) {
+        final var next = new TreeMap<>(tables);
+        next.keySet().removeAll(compacted.keySet());
+        next.put(merged.serialNumber(), merged);
+        return new TableSet(version + 1, next);
+    }
+
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns the tables of the set from the oldest to the newest one.
+     */
+    @NotNull
+    NavigableMap<Long, Table> tables() {
+        return tables;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The tables of a storage as they were when a snapshot was taken, see {@link MemTablePool#snapshot}.
+ * The memory tables are read as of the sequence number of the snapshot, and the SSTables
+ * are immutable, so compactions replacing them later don't affect the snapshot:
+ * the replaced files stay mapped while the tables are referenced.
+ */
+final class TableSnapshot implements Closeable {
+    private final long sequence;
+    @NotNull private final MutableTable current;
+    @NotNull private final NavigableMap<Long, MutableTable> pending;
+    @NotNull private final NavigableMap<Long, Table> ssTables;
+    @NotNull private final Runnable release;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    TableSnapshot(final long sequence,
+                  @NotNull final MutableTable current,
+                  @NotNull final NavigableMap<Long, MutableTable> pending,
+                  @NotNull final NavigableMap<Long, Table> ssTables,
+                  @NotNull final Runnable release) {
+        this.sequence = sequence;
+        this.current = current;
+        this.pending = pending;
+        this.ssTables = ssTables;
+        this.release = release;
+    }
+
+    /**
+     * Returns the merged rows of the snapshot, tombstones included.
+     *
+     * @param from starting key
+     * @return rows with unique keys
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull
+    Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
+        checkNotClosed();
+        final List<Iterator<Row>> iterators = new ArrayList<>(1 + pending.size() + ssTables.size());
+        iterators.add(current.iterator(from, sequence));
+        for (final var table : pending.descendingMap().values()) {
+            iterators.add(table.iterator(from, sequence));
+        }
+        for (final var table : ssTables.descendingMap().values()) {
+            iterators.add(table.iterator(from));
+        }
+        return Table.reduceIterators(iterators);
+    }
+
+    /**
+     * Returns the merged rows of the snapshot with keys less than the given one
+     * in descending order of keys, tombstones included.
+     *
+     * @param to key to start before (exclusive) or null to start at the last row
+     * @return rows with unique keys in descending order
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull
+    Iterator<Row> descendingIterator(@Nullable final ByteBuffer to) throws IOException {
+        checkNotClosed();
+        final List<Iterator<Row>> iterators = new ArrayList<>(1 + pending.size() + ssTables.size());
+        iterators.add(current.descendingIterator(to, sequence));
+        for (final var table : pending.descendingMap().values()) {
+            iterators.add(table.descendingIterator(to, sequence));
+        }
+        for (final var table : ssTables.descendingMap().values()) {
+            iterators.add(table.descendingIterator(to));
+        }
+        return Table.reduceDescendingIterators(iterators);
+    }
+
+    private void checkNotClosed() {
+        if (isClosed.get()) {
+            throw new IllegalStateException("Snapshot is already closed");
+        }
+    }
+
+    /**
+     * Lets the memory tables release the versions only this snapshot sees.
+     * Iterators obtained before must not be used after.
+     */
+    @Override
+    public void close() {
+        if (isClosed.compareAndSet(false, true)) {
+            release.run();
+        }
+    }
+}
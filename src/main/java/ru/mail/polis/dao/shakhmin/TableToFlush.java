@@ -7,14 +7,12 @@ public class TableToFlush {
     @NotNull private final Iterator<Row> rows;
     private final long serialNumber;
     private final boolean poisonPill;
-    private final boolean isCompactTable;
 
     public static class Builder {
         @NotNull private final Iterator<Row> rows;
         private final long serialNumber;
 
         private boolean poisonPill;
-        private boolean isCompactTable;
 
         public Builder(@NotNull final Iterator<Row> rows,
                        final long serialNumber) {
@@ -27,11 +25,6 @@ public class TableToFlush {
             return this;
         }
 
-        public Builder isCompactTable() {
-            isCompactTable = true;
-            return this;
-        }
-
         public TableToFlush build() {
             return new TableToFlush(this);
         }
@@ -41,7 +34,6 @@ public class TableToFlush {
         this.serialNumber = builder.serialNumber;
         this.rows = builder.rows;
         this.poisonPill = builder.poisonPill;
-        this.isCompactTable = builder.isCompactTable;
     }
 
     private TableToFlush(@NotNull final Iterator<Row> rows,
@@ -49,7 +41,6 @@ public class TableToFlush {
         this.serialNumber = serialNumber;
         this.rows = rows;
         this.poisonPill = false;
-        this.isCompactTable = false;
     }
 
     public static TableToFlush of(@NotNull final Iterator<Row> rows,
@@ -69,8 +60,4 @@ public class TableToFlush {
     public boolean isPoisonPill() {
         return poisonPill;
     }
-
-    public boolean isCompactTable() {
-        return isCompactTable;
-    }
 }
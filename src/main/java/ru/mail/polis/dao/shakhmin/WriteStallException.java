@@ -0,0 +1,20 @@
+package ru.mail.polis.dao.shakhmin;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a write has waited too long for the memory tables to be flushed,
+ * i.e. the storage is overloaded and the write should be retried later.
+ */
+public class WriteStallException extends IOException {
+    private static final long serialVersionUID = 0L;
+
+    public WriteStallException(final String s) {
+        super(s);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
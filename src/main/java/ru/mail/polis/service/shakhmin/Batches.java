@@ -0,0 +1,209 @@
+package ru.mail.polis.service.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.WriteBatch;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary formats of the bodies of batch requests.
+ *
+ * <p>A batch of writes is a sequence of {@code [key size (int)][key][value size (int)][value]},
+ * where the value size of a removal is -1 and there is no value. A multi-get request is
+ * a sequence of {@code [key size (int)][key]}, and the response has a value
+ * {@code [value size (int)][value]} for each key in the same order, where the value size
+ * of an absent or removed key is -1 and there is no value.
+ */
+final class Batches {
+    private static final int REMOVE = -1;
+
+    private Batches() {
+        // Not instantiable
+    }
+
+    /**
+     * Parses the body of a batch request. The keys and the values are copied out of the body,
+     * since the memory table keeps them as they are and accounts for their whole arrays.
+     *
+     * @param body body of the request
+     * @return batch of the writes
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    @NotNull
+    static WriteBatch parse(@NotNull final byte[] body) {
+        final var batch = new WriteBatch();
+        final var buffer = ByteBuffer.wrap(body);
+        try {
+            while (buffer.hasRemaining()) {
+                final var key = copy(buffer, buffer.getInt());
+                if (!key.hasRemaining()) {
+                    throw new IllegalArgumentException("Empty key");
+                }
+                final int valueSize = buffer.getInt();
+                if (valueSize == REMOVE) {
+                    batch.remove(key);
+                } else {
+                    batch.upsert(key, copy(buffer, valueSize));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated batch", e);
+        }
+        return batch;
+    }
+
+    /**
+     * Serializes the batch to the body of a request.
+     *
+     * @param batch batch of the writes
+     * @return body of the request
+     */
+    @NotNull
+    static byte[] serialize(@NotNull final WriteBatch batch) {
+        int size = 0;
+        for (final var write : batch.writes()) {
+            final var value = write.getValue();
+            size += Integer.BYTES * 2 + write.getKey().remaining() + (value == null ? 0 : value.remaining());
+        }
+        final var buffer = ByteBuffer.allocate(size);
+        for (final var write : batch.writes()) {
+            final var value = write.getValue();
+            buffer.putInt(write.getKey().remaining()).put(write.getKey());
+            if (value == null) {
+                buffer.putInt(REMOVE);
+            } else {
+                buffer.putInt(value.remaining()).put(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses the body of a multi-get request.
+     *
+     * @param body body of the request
+     * @return keys
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    @NotNull
+    static List<ByteBuffer> parseKeys(@NotNull final byte[] body) {
+        final var keys = new ArrayList<ByteBuffer>();
+        final var buffer = ByteBuffer.wrap(body);
+        try {
+            while (buffer.hasRemaining()) {
+                final var key = slice(buffer, buffer.getInt());
+                if (!key.hasRemaining()) {
+                    throw new IllegalArgumentException("Empty key");
+                }
+                keys.add(key);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated keys", e);
+        }
+        return keys;
+    }
+
+    /**
+     * Serializes the keys to the body of a multi-get request.
+     *
+     * @param keys keys
+     * @return body of the request
+     */
+    @NotNull
+    static byte[] serializeKeys(@NotNull final List<ByteBuffer> keys) {
+        int size = 0;
+        for (final var key : keys) {
+            size += Integer.BYTES + key.remaining();
+        }
+        final var buffer = ByteBuffer.allocate(size);
+        for (final var key : keys) {
+            buffer.putInt(key.remaining()).put(key.duplicate());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Serializes the values read by a replica, keeping their timestamps and tombstones.
+     *
+     * @param values values of the requested keys
+     * @return body of the response of the replica
+     */
+    @NotNull
+    static byte[] serializeReplicaValues(@NotNull final List<Value> values) {
+        int size = 0;
+        for (final var value : values) {
+            size += value.serializedSize();
+        }
+        final var buffer = ByteBuffer.allocate(size);
+        for (final var value : values) {
+            value.writeTo(buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses the response of a replica.
+     *
+     * @param body body of the response
+     * @param count number of the requested keys
+     * @return values of the keys
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    @NotNull
+    static List<Value> parseReplicaValues(@NotNull final byte[] body,
+                                          final int count) {
+        final var buffer = ByteBuffer.wrap(body);
+        final var values = new ArrayList<Value>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(Value.readFrom(buffer));
+        }
+        return values;
+    }
+
+    /**
+     * Serializes the merged values to the body of a multi-get response.
+     *
+     * @param values values of the requested keys
+     * @return body of the response
+     */
+    @NotNull
+    static byte[] serializeValues(@NotNull final List<Value> values) {
+        int size = 0;
+        for (final var value : values) {
+            final var data = value.getData();
+            size += Integer.BYTES + (data == null ? 0 : data.length);
+        }
+        final var buffer = ByteBuffer.allocate(size);
+        for (final var value : values) {
+            final var data = value.getData();
+            if (data == null) {
+                buffer.putInt(REMOVE);
+            } else {
+                buffer.putInt(data.length).put(data);
+            }
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer,
+                                   final int size) {
+        final var slice = slice(buffer, size);
+        final var copy = new byte[size];
+        slice.get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer,
+                                    final int size) {
+        if (size < 0 || size > buffer.remaining()) {
+            throw new IllegalArgumentException("Wrong size " + size);
+        }
+        final var slice = buffer.slice().limit(size);
+        buffer.position(buffer.position() + size);
+        return slice;
+    }
+}
@@ -53,6 +53,9 @@ final class FutureUtils {
                     final var requestBuilder = HttpRequest
                             .newBuilder(URI.create(node + meta.getRequest().getURI()))
                             .setHeader(PROXY_HEADER_NAME, PROXY_HEADER_VALUE);
+                    if (meta.hasTimestamp()) {
+                        requestBuilder.setHeader(Value.TIMESTAMP_HEADER_NAME, Long.toString(meta.getTimestamp()));
+                    }
                     final var body = meta.getRequest().getBody();
                     switch (meta.getMethod()) {
                         case GET:
@@ -2,40 +2,62 @@ package ru.mail.polis.service.shakhmin;
 
 import com.google.common.base.Charsets;
 import one.nio.http.HttpSession;
+import one.nio.http.Request;
 import one.nio.http.Response;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.dao.DAO;
-import ru.mail.polis.dao.shakhmin.LSMDao;
+import ru.mail.polis.dao.WriteBatch;
+import ru.mail.polis.dao.shakhmin.CellDao;
+import ru.mail.polis.dao.shakhmin.HybridClock;
+import ru.mail.polis.dao.shakhmin.WriteStallException;
+import ru.mail.polis.service.shakhmin.topology.RF;
 import ru.mail.polis.service.shakhmin.topology.Topology;
 import java.io.IOException;
+import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static ru.mail.polis.service.shakhmin.FutureUtils.getResponsesFromReplicas;
 import static ru.mail.polis.service.shakhmin.ResponseUtils.sendResponse;
 
+/**
+ * Coordinates the reads and writes of the replicas of a key.
+ *
+ * <p>The coordinator of a write stamps it with its {@link HybridClock} and sends the timestamp
+ * to the replicas in the X-OK-Timestamp header, so all the replicas store the write with the same
+ * timestamp and skewed clocks of the replicas don't decide which of concurrent writes wins.
+ * A replica catches up with the timestamps it receives, so a write it coordinates later is newer.
+ */
 final class HttpService {
 
     private static final Logger log = LoggerFactory.getLogger(HttpService.class);
     static final String PROXY_HEADER_NAME = "X-OK-Proxy";
     static final String PROXY_HEADER_VALUE = "true";
     static final String PROXY_HEADER = PROXY_HEADER_NAME + ": " + PROXY_HEADER_VALUE;
+    static final String BATCH_PATH = "/v0/entities/batch";
 
-    @NotNull private final LSMDao dao;
+    @NotNull private final CellDao dao;
     @NotNull private final Topology<String> topology;
     @NotNull private final HttpClient httpClient;
+    @NotNull private final HybridClock clock = new HybridClock();
 
     HttpService(@NotNull final Executor proxyWorkers,
                 @NotNull final DAO dao,
                 @NotNull final Topology<String> topology) {
-        this.dao = (LSMDao) dao;
+        this.dao = (CellDao) dao;
         this.topology = topology;
         this.httpClient = HttpClient.newBuilder()
                 .executor(proxyWorkers)
@@ -85,10 +107,13 @@ final class HttpService {
         if (meta.proxied()) {
             CompletableFuture.runAsync(() -> {
                 try {
-                    dao.upsert(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getValue());
+                    dao.upsert(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getValue(),
+                            receivedTimestamp(meta.getTimestamp()));
                     sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
                 } catch (NoSuchElementException e) {
                     sendResponse(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+                } catch (WriteStallException e) {
+                    sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
                 } catch (IOException e) {
                     sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
                 }
@@ -102,14 +127,18 @@ final class HttpService {
 
         final var replicas = topology.replicas(
                 ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getRf().getFrom());
+        final var stamped = meta.withTimestamp(clock.now());
 
-        handleLocally(replicas, () -> upsertToDao(meta.getId(), meta.getValue()))
-                .thenComposeAsync(handled -> getResponsesFromReplicas(replicas, meta, topology, httpClient))
-                .whenCompleteAsync((responses, failure) -> ResponseUtils.checkPutResponses(
-                        replicas.contains(topology.whoAmI()) ? 1 : 0,
-                        meta.getRf().getAck(),
-                        responses, session
-                ))
+        handleLocally(replicas, () -> upsertToDao(stamped))
+                .thenComposeAsync(handled -> getResponsesFromReplicas(replicas, stamped, topology, httpClient))
+                .whenCompleteAsync((responses, failure) -> {
+                    if (!ResponseUtils.rejectIfStalled(failure, session)) {
+                        ResponseUtils.checkPutResponses(
+                                replicas.contains(topology.whoAmI()) ? 1 : 0,
+                                meta.getRf().getAck(),
+                                responses, session);
+                    }
+                })
                 .exceptionally(ex -> {
                     log.error(FutureUtils.FUTURE_ERROR_LOG, ex);
                     return null;
@@ -121,10 +150,13 @@ final class HttpService {
         if (meta.proxied()) {
             CompletableFuture.runAsync(() -> {
                 try {
-                    dao.remove(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)));
+                    dao.remove(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)),
+                            receivedTimestamp(meta.getTimestamp()));
                     sendResponse(session, new Response(Response.ACCEPTED, Response.EMPTY));
                 } catch (NoSuchElementException e) {
                     sendResponse(session, new Response(Response.NOT_FOUND, Response.EMPTY));
+                } catch (WriteStallException e) {
+                    sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
                 } catch (IOException e) {
                     sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
                 }
@@ -138,19 +170,282 @@ final class HttpService {
 
         final var replicas = topology.replicas(
                 ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getRf().getFrom());
-        handleLocally(replicas, () -> removeFromDao(meta.getId()))
-                .thenComposeAsync(handled -> getResponsesFromReplicas(replicas, meta, topology, httpClient))
-                .whenCompleteAsync((responses, failure) -> ResponseUtils.checkDeleteResponses(
-                        replicas.contains(topology.whoAmI()) ? 1 : 0,
-                        meta.getRf().getAck(),
-                        responses, session
-                ))
+        final var stamped = meta.withTimestamp(clock.now());
+        handleLocally(replicas, () -> removeFromDao(stamped))
+                .thenComposeAsync(handled -> getResponsesFromReplicas(replicas, stamped, topology, httpClient))
+                .whenCompleteAsync((responses, failure) -> {
+                    if (!ResponseUtils.rejectIfStalled(failure, session)) {
+                        ResponseUtils.checkDeleteResponses(
+                                replicas.contains(topology.whoAmI()) ? 1 : 0,
+                                meta.getRf().getAck(),
+                                responses, session);
+                    }
+                })
+                .exceptionally(ex -> {
+                    log.error(FutureUtils.FUTURE_ERROR_LOG, ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Applies a batch of writes. The coordinator splits the batch between the nodes,
+     * each node gets the writes it is a replica for as a single request,
+     * and the batch succeeds if every write is acknowledged by enough replicas.
+     * All the writes of the batch get the same timestamp on all the replicas.
+     * The batch is not atomic: each replica applies its part atomically within each shard
+     * of its storage only, and a failed batch may be applied partially.
+     *
+     * @param session http session
+     * @param request request with the batch in the body, see {@link Batches}
+     * @param rf replication factor of the writes
+     * @param proxied true if request is proxied
+     */
+    void batch(@NotNull final HttpSession session,
+               @NotNull final Request request,
+               @NotNull final RF rf,
+               final boolean proxied) {
+        final WriteBatch batch;
+        try {
+            batch = Batches.parse(request.getBody() == null ? new byte[0] : request.getBody());
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final long timestamp;
+        try {
+            timestamp = proxied ? receivedTimestamp(MetaRequest.parseTimestamp(request)) : clock.now();
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final var nodes = new HashMap<String, WriteBatch>();
+        final var replicas = new ArrayList<List<String>>(batch.size());
+        for (final var write : batch.writes()) {
+            final var writeReplicas = proxied
+                    ? List.of(topology.whoAmI())
+                    : topology.replicas(write.getKey(), rf.getFrom());
+            replicas.add(writeReplicas);
+            for (final var node : writeReplicas) {
+                nodes.computeIfAbsent(node, n -> new WriteBatch()).add(write);
+            }
+        }
+        // Status codes of the parts of the batch by the nodes
+        final var statuses = new HashMap<String, CompletableFuture<Integer>>();
+        for (final var node : nodes.entrySet()) {
+            statuses.put(node.getKey(), topology.isMe(node.getKey())
+                    ? applyBatchLocally(node.getValue(), timestamp)
+                    : sendBatch(node.getKey(), node.getValue(), timestamp));
+        }
+        CompletableFuture.allOf(statuses.values().toArray(new CompletableFuture<?>[0]))
+                .whenCompleteAsync((ignored, failure) -> {
+                    if (ResponseUtils.rejectIfStalled(failure, session)) {
+                        return;
+                    }
+                    final int expectedAcks = proxied ? 1 : rf.getAck();
+                    for (final var writeReplicas : replicas) {
+                        int writeAcks = 0;
+                        boolean stalled = false;
+                        for (final var node : writeReplicas) {
+                            final int status = statuses.get(node).getNow(504);
+                            writeAcks += status == 201 ? 1 : 0;
+                            stalled |= status == 503;
+                        }
+                        if (writeAcks < expectedAcks) {
+                            // A replica which stalls writes asks the client to back off
+                            sendResponse(session, new Response(
+                                    stalled ? Response.SERVICE_UNAVAILABLE : Response.GATEWAY_TIMEOUT,
+                                    Response.EMPTY));
+                            return;
+                        }
+                    }
+                    sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
+                })
                 .exceptionally(ex -> {
                     log.error(FutureUtils.FUTURE_ERROR_LOG, ex);
                     return null;
                 });
     }
 
+    /**
+     * Gets the values of many keys at once. The coordinator groups the keys by the nodes
+     * which are their replicas, sends each node a single request with all its keys,
+     * and merges the values of each key like {@link #get} does. An empty list of keys
+     * gets an empty list of values right away, there is nobody to ask.
+     *
+     * @param session http session
+     * @param request request with the keys in the body, see {@link Batches}
+     * @param rf replication factor of the reads
+     * @param proxied true if request is proxied
+     */
+    void multiGet(@NotNull final HttpSession session,
+                  @NotNull final Request request,
+                  @NotNull final RF rf,
+                  final boolean proxied) {
+        final List<ByteBuffer> keys;
+        try {
+            keys = Batches.parseKeys(request.getBody() == null ? new byte[0] : request.getBody());
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if (keys.isEmpty()) {
+            sendResponse(session, new Response(Response.OK, proxied
+                    ? Batches.serializeReplicaValues(List.of())
+                    : Batches.serializeValues(List.of())));
+            return;
+        }
+        // Indexes of the keys by the nodes to ask
+        final var nodes = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < keys.size(); i++) {
+            final var replicas = proxied
+                    ? List.of(topology.whoAmI())
+                    : topology.replicas(keys.get(i), rf.getFrom());
+            for (final var node : replicas) {
+                nodes.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+            }
+        }
+        final var answers = new HashMap<String, CompletableFuture<List<Value>>>();
+        for (final var node : nodes.entrySet()) {
+            final var nodeKeys = new ArrayList<ByteBuffer>(node.getValue().size());
+            for (final int i : node.getValue()) {
+                nodeKeys.add(keys.get(i));
+            }
+            answers.put(node.getKey(), topology.isMe(node.getKey())
+                    ? getLocally(nodeKeys)
+                    : sendMultiGet(node.getKey(), nodeKeys));
+        }
+        CompletableFuture.allOf(answers.values().toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> {
+                    if (proxied) {
+                        final var values = answers.get(topology.whoAmI()).getNow(null);
+                        sendResponse(session, values == null
+                                ? new Response(Response.INTERNAL_ERROR, Response.EMPTY)
+                                : new Response(Response.OK, Batches.serializeReplicaValues(values)));
+                    } else {
+                        sendMergedValues(session, keys.size(), rf.getAck(), nodes, answers);
+                    }
+                })
+                .exceptionally(ex -> {
+                    log.error(FutureUtils.FUTURE_ERROR_LOG, ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Merges the values of each key returned by its replicas and sends them if each key
+     * has got enough answers, else sends 504 Gateway Timeout.
+     */
+    private static void sendMergedValues(@NotNull final HttpSession session,
+                                         final int keysNumber,
+                                         final int acks,
+                                         @NotNull final Map<String, List<Integer>> nodes,
+                                         @NotNull final Map<String, CompletableFuture<List<Value>>> answers) {
+        final var values = new ArrayList<List<Value>>(keysNumber);
+        for (int i = 0; i < keysNumber; i++) {
+            values.add(new ArrayList<>());
+        }
+        for (final var node : nodes.entrySet()) {
+            final var answer = answers.get(node.getKey()).getNow(null);
+            if (answer != null) {
+                for (int j = 0; j < answer.size(); j++) {
+                    values.get(node.getValue().get(j)).add(answer.get(j));
+                }
+            }
+        }
+        final var merged = new ArrayList<Value>(keysNumber);
+        for (final var keyValues : values) {
+            if (keyValues.size() < acks) {
+                sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+                return;
+            }
+            merged.add(Value.merge(keyValues));
+        }
+        sendResponse(session, new Response(Response.OK, Batches.serializeValues(merged)));
+    }
+
+    /**
+     * Reads the keys from the local storage.
+     *
+     * @return future of the values or of null if the storage fails
+     */
+    @NotNull
+    private CompletableFuture<List<Value>> getLocally(@NotNull final List<ByteBuffer> keys) {
+        return CompletableFuture.supplyAsync(() -> {
+            final var values = new ArrayList<Value>(keys.size());
+            try {
+                for (final var key : keys) {
+                    values.add(Value.from(dao.getCell(key)));
+                }
+                return values;
+            } catch (IOException e) {
+                log.error("[{}] Can't get {} keys", topology.whoAmI(), keys.size(), e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asks the replica for the keys.
+     *
+     * @return future of the values or of null if the replica fails
+     */
+    @NotNull
+    private CompletableFuture<List<Value>> sendMultiGet(@NotNull final String node,
+                                                        @NotNull final List<ByteBuffer> keys) {
+        final var request = HttpRequest.newBuilder(URI.create(node + BATCH_PATH))
+                .setHeader(PROXY_HEADER_NAME, PROXY_HEADER_VALUE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(Batches.serializeKeys(keys)))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .orTimeout(1, TimeUnit.SECONDS)
+                .thenApply(response -> response.statusCode() == 200
+                        ? Batches.parseReplicaValues(response.body(), keys.size())
+                        : null)
+                .exceptionally(ex -> null);
+    }
+
+    /**
+     * Applies the part of the batch to the local storage. A stalled write fails the whole request,
+     * as the node is overloaded.
+     *
+     * @return future of 201 or of 500 if the storage fails
+     */
+    @NotNull
+    private CompletableFuture<Integer> applyBatchLocally(@NotNull final WriteBatch batch,
+                                                         final long timestamp) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                dao.applyBatch(batch, timestamp);
+                return 201;
+            } catch (WriteStallException e) {
+                throw new CompletionException(e);
+            } catch (IOException e) {
+                log.error("[{}] Can't apply a batch of {} writes", topology.whoAmI(), batch.size(), e);
+                return 500;
+            }
+        });
+    }
+
+    /**
+     * Sends the part of the batch to the replica.
+     *
+     * @return future of the status code of the replica or of 504 if it doesn't answer in time
+     */
+    @NotNull
+    private CompletableFuture<Integer> sendBatch(@NotNull final String node,
+                                                 @NotNull final WriteBatch batch,
+                                                 final long timestamp) {
+        final var request = HttpRequest.newBuilder(URI.create(node + BATCH_PATH))
+                .setHeader(PROXY_HEADER_NAME, PROXY_HEADER_VALUE)
+                .setHeader(Value.TIMESTAMP_HEADER_NAME, Long.toString(timestamp))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(Batches.serialize(batch)))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .orTimeout(1, TimeUnit.SECONDS)
+                .thenApply(HttpResponse::statusCode)
+                .exceptionally(ex -> 504);
+    }
+
     /**
      * Runs the action asynchronously if
      * this node contains in {@code replicas}.
@@ -171,20 +466,39 @@ final class HttpService {
         });
     }
 
-    private void removeFromDao(@NotNull final String key) {
+    /**
+     * Returns the timestamp the coordinator assigned to the proxied write and catches up with it.
+     * A write proxied without a timestamp is stamped by this node.
+     */
+    private long receivedTimestamp(final long timestamp) {
+        if (timestamp == MetaRequest.NO_TIMESTAMP) {
+            return clock.now();
+        }
+        clock.update(timestamp);
+        return timestamp;
+    }
+
+    /**
+     * Removes the key from the local storage. A stalled write fails the whole request,
+     * as the node is overloaded.
+     */
+    private void removeFromDao(@NotNull final MetaRequest meta) {
         try {
-            dao.remove(ByteBuffer.wrap(key.getBytes(Charsets.UTF_8)));
+            dao.remove(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getTimestamp());
+        } catch (WriteStallException e) {
+            throw new CompletionException(e);
         } catch (IOException e) {
-            log.error("[{}] Can't remove {}", topology.whoAmI(), key, e);
+            log.error("[{}] Can't remove {}", topology.whoAmI(), meta.getId(), e);
         }
     }
 
-    private void upsertToDao(@NotNull final String key,
-                             @NotNull final ByteBuffer value) {
+    private void upsertToDao(@NotNull final MetaRequest meta) {
         try {
-            dao.upsert(ByteBuffer.wrap(key.getBytes(Charsets.UTF_8)), value);
+            dao.upsert(ByteBuffer.wrap(meta.getId().getBytes(Charsets.UTF_8)), meta.getValue(), meta.getTimestamp());
+        } catch (WriteStallException e) {
+            throw new CompletionException(e);
         } catch (IOException e) {
-            log.error("[{}] Can't upsert {}={}", topology.whoAmI(), key, value, e);
+            log.error("[{}] Can't upsert {}={}", topology.whoAmI(), meta.getId(), meta.getValue(), e);
         }
     }
 
@@ -2,6 +2,7 @@ package ru.mail.polis.service.shakhmin;
 
 import one.nio.http.Request;
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.shakhmin.HybridClock;
 import ru.mail.polis.service.shakhmin.topology.RF;
 
 import java.nio.ByteBuffer;
@@ -14,6 +15,8 @@ import static one.nio.http.Request.METHOD_PUT;
 public final class MetaRequest {
 
     private static final String PARAM_ID = "id";
+    private static final String TIMESTAMP_HEADER = Value.TIMESTAMP_HEADER_NAME + ": ";
+    static final long NO_TIMESTAMP = -1L;
 
     @NotNull private final Request request;
     @NotNull private final RequestMethod method;
@@ -21,6 +24,7 @@ public final class MetaRequest {
     @NotNull private final String id;
     @NotNull private final ByteBuffer value;
     private final boolean proxied;
+    private final long timestamp;
 
     /**
      * Creates implementation of meta info of request.
@@ -28,6 +32,8 @@ public final class MetaRequest {
      * @param request request
      * @param rf a replication factor
      * @param proxied true if request is proxied
+     * @throws IllegalArgumentException if the method is not supported
+     *                                  or the timestamp of a proxied request is malformed
      */
     MetaRequest(@NotNull final Request request,
                 @NotNull final RF rf,
@@ -39,19 +45,71 @@ public final class MetaRequest {
                 ? ByteBuffer.allocate(0)
                 : ByteBuffer.wrap(request.getBody());
         this.proxied = proxied;
+        this.timestamp = proxied ? parseTimestamp(request) : NO_TIMESTAMP;
+        this.method = method(request);
+    }
+
+    private MetaRequest(@NotNull final MetaRequest meta,
+                        final long timestamp) {
+        this.request = meta.request;
+        this.rf = meta.rf;
+        this.id = meta.id;
+        this.value = meta.value;
+        this.proxied = meta.proxied;
+        this.method = meta.method;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the request with the timestamp the coordinator assigned to the write,
+     * which is sent to the replicas in the X-OK-Timestamp header.
+     *
+     * @param timestamp hybrid timestamp of the write
+     * @return stamped request
+     */
+    @NotNull
+    MetaRequest withTimestamp(final long timestamp) {
+        return new MetaRequest(this, timestamp);
+    }
+
+    /**
+     * Parses the timestamp the coordinator sent with a proxied write.
+     *
+     * @param request proxied request
+     * @return hybrid timestamp or {@link #NO_TIMESTAMP} if there is none
+     * @throws IllegalArgumentException if the timestamp is malformed, not positive, since a tombstone
+     *                                  is told by the sign of its timestamp, or too far ahead of this node
+     */
+    static long parseTimestamp(@NotNull final Request request) {
+        final var header = request.getHeader(TIMESTAMP_HEADER);
+        if (header == null) {
+            return NO_TIMESTAMP;
+        }
+        try {
+            final long timestamp = Long.parseLong(header.trim());
+            if (timestamp <= 0) {
+                throw new IllegalArgumentException("Not positive timestamp " + timestamp);
+            }
+            if (HybridClock.isTooFarAhead(timestamp)) {
+                throw new IllegalArgumentException("Timestamp " + timestamp + " is too far ahead");
+            }
+            return timestamp;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed timestamp " + header, e);
+        }
+    }
+
+    @NotNull
+    private static RequestMethod method(@NotNull final Request request) {
         switch (request.getMethod()) {
             case METHOD_GET:
-                method = RequestMethod.GET;
-                break;
+                return RequestMethod.GET;
             case METHOD_POST:
-                method = RequestMethod.POST;
-                break;
+                return RequestMethod.POST;
             case METHOD_PUT:
-                method = RequestMethod.PUT;
-                break;
+                return RequestMethod.PUT;
             case METHOD_DELETE:
-                method = RequestMethod.DELETE;
-                break;
+                return RequestMethod.DELETE;
             default:
                 throw new IllegalArgumentException("This method is not supported");
         }
@@ -81,6 +139,18 @@ public final class MetaRequest {
         return proxied;
     }
 
+    boolean hasTimestamp() {
+        return timestamp != NO_TIMESTAMP;
+    }
+
+    /**
+     * Returns the hybrid timestamp of the write or {@link #NO_TIMESTAMP}
+     * if the request is neither stamped by the coordinator nor proxied with a timestamp.
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+
     @NotNull
     public RequestMethod getMethod() {
         return method;
@@ -12,7 +12,7 @@ import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.dao.DAO;
-import ru.mail.polis.dao.shakhmin.LSMDao;
+import ru.mail.polis.dao.shakhmin.CellDao;
 import ru.mail.polis.service.Service;
 import ru.mail.polis.service.shakhmin.topology.RF;
 import ru.mail.polis.service.shakhmin.topology.Topology;
@@ -26,7 +26,7 @@ import static ru.mail.polis.service.shakhmin.ResponseUtils.sendResponse;
 public class ReplicatedHttpServer extends HttpServer implements Service {
 
     @NotNull private final Topology<String> topology;
-    @NotNull private final LSMDao dao;
+    @NotNull private final CellDao dao;
     @NotNull private final Executor serverWorkers;
     @NotNull private final RF defaultRF;
     @NotNull private final HttpService httpService;
@@ -46,7 +46,7 @@ public class ReplicatedHttpServer extends HttpServer implements Service {
                                 @NotNull final Executor proxyWorkers) throws IOException {
         super(getConfig(port));
         this.topology = topology;
-        this.dao = (LSMDao) dao;
+        this.dao = (CellDao) dao;
         this.serverWorkers = workers;
 
         final var nodes = topology.all();
@@ -73,27 +73,70 @@ public class ReplicatedHttpServer extends HttpServer implements Service {
         }
         final RF rf;
         try {
-            rf = replicas == null ? defaultRF : RF.from(replicas);
-            final int nodesNumber = topology.all().size();
-            if (rf.getFrom() > nodesNumber) {
-                throw new IllegalArgumentException(
-                        "Wrong RF: [from = " + rf.getFrom() + "] > [ nodesNumber = " + nodesNumber);
-            }
+            rf = replicationFactor(replicas);
         } catch (IllegalArgumentException e) {
             sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
 
+        if (request.getMethod() != Request.METHOD_GET
+                && request.getMethod() != Request.METHOD_PUT
+                && request.getMethod() != Request.METHOD_DELETE) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        final MetaRequest meta;
+        try {
+            meta = new MetaRequest(request, rf, request.getHeader(PROXY_HEADER) != null);
+        } catch (IllegalArgumentException e) {
+            // Malformed timestamp of a proxied write
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        switch (meta.getMethod()) {
+            case GET:
+                executeAsync(() -> httpService.get(session, meta));
+                break;
+            case PUT:
+                executeAsync(() -> httpService.upsert(session, meta));
+                break;
+            case DELETE:
+                executeAsync(() -> httpService.delete(session, meta));
+                break;
+            default:
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                break;
+        }
+    }
+
+    /**
+     * This endpoint applies a batch of upserts and removals on PUT
+     * and gets the values of many keys on POST,
+     * see {@link Batches} for the formats of the bodies. A batch is not atomic,
+     * the default storage applies it atomically within each shard only.
+     *
+     * @param session http session
+     * @param request request
+     * @param replicas replication factor of the writes or the reads
+     */
+    @Path(HttpService.BATCH_PATH)
+    public void batch(final HttpSession session,
+                      final Request request,
+                      @Param("replicas") final String replicas) {
+        final RF rf;
+        try {
+            rf = replicationFactor(replicas);
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
         final boolean proxied = request.getHeader(PROXY_HEADER) != null;
         switch (request.getMethod()) {
-            case Request.METHOD_GET:
-                executeAsync(() -> httpService.get(session, new MetaRequest(request, rf, proxied)));
-                break;
             case Request.METHOD_PUT:
-                executeAsync(() -> httpService.upsert(session, new MetaRequest(request, rf, proxied)));
+                executeAsync(() -> httpService.batch(session, request, rf, proxied));
                 break;
-            case Request.METHOD_DELETE:
-                executeAsync(() -> httpService.delete(session, new MetaRequest(request, rf, proxied)));
+            case Request.METHOD_POST:
+                executeAsync(() -> httpService.multiGet(session, request, rf, proxied));
                 break;
             default:
                 sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
@@ -109,12 +152,15 @@ public class ReplicatedHttpServer extends HttpServer implements Service {
      * @param request request
      * @param start start point of range data
      * @param end end point of range data
+     * @param reverse "true" to stream the range from the end backwards, so the tail of a range
+     *                is read without scanning it from the start
      */
     @Path("/v0/entities")
     public void entities(final HttpSession session,
                          final Request request,
                          @Param("start") final String start,
-                         @Param("end") final String end) {
+                         @Param("end") final String end,
+                         @Param("reverse") final String reverse) {
         if (start == null || start.isEmpty()) {
             sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
@@ -123,11 +169,19 @@ public class ReplicatedHttpServer extends HttpServer implements Service {
             sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
             return;
         }
+        final boolean descending;
+        if (reverse == null || "false".equals(reverse)) {
+            descending = false;
+        } else if ("true".equals(reverse)) {
+            descending = true;
+        } else {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
         try {
-            final var records =
-                    dao.range(
-                            ByteBuffer.wrap(start.getBytes(Charsets.UTF_8)),
-                            end == null || end.isEmpty() ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8)));
+            final var from = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
+            final var to = end == null || end.isEmpty() ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
+            final var records = descending ? dao.descendingRange(from, to) : dao.range(from, to);
             ((StorageSession) session).stream(records);
         } catch (IOException e) {
             sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
@@ -156,6 +210,24 @@ public class ReplicatedHttpServer extends HttpServer implements Service {
         return new StorageSession(socket, this);
     }
 
+    /**
+     * Parses the replication factor of a request.
+     *
+     * @param replicas parameter in format "ack/from" or null for the default one
+     * @return replication factor
+     * @throws IllegalArgumentException if the parameter is malformed or there are too few nodes
+     */
+    @NotNull
+    private RF replicationFactor(final String replicas) {
+        final var rf = replicas == null ? defaultRF : RF.from(replicas);
+        final int nodesNumber = topology.all().size();
+        if (rf.getFrom() > nodesNumber) {
+            throw new IllegalArgumentException(
+                    "Wrong RF: [from = " + rf.getFrom() + "] > [ nodesNumber = " + nodesNumber);
+        }
+        return rf;
+    }
+
     private void executeAsync(@NotNull final Runnable action) {
         serverWorkers.execute(action);
     }
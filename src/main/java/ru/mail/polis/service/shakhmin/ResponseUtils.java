@@ -1,10 +1,13 @@
 package ru.mail.polis.service.shakhmin;
 
+import com.google.common.base.Throwables;
 import one.nio.http.HttpSession;
 import one.nio.http.Response;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.shakhmin.WriteStallException;
 import java.io.IOException;
 import java.net.http.HttpResponse;
 import java.util.List;
@@ -32,6 +35,24 @@ final class ResponseUtils {
         }
     }
 
+    /**
+     * Sends 503 Service Unavailable if the request has failed because
+     * the local storage stalls writes.
+     *
+     * @param failure failure of the request, if any
+     * @param session a {@link HttpSession}
+     * @return true if the response has been sent
+     */
+    public static boolean rejectIfStalled(@Nullable final Throwable failure,
+                                          @NotNull final HttpSession session) {
+        if (failure == null
+                || Throwables.getCausalChain(failure).stream().noneMatch(WriteStallException.class::isInstance)) {
+            return false;
+        }
+        sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        return true;
+    }
+
     public static void checkPutResponses(final int startAcks,
                                          final int expectedAcks,
                                          @NotNull final List<HttpResponse<byte[]>> responses,
@@ -41,6 +62,7 @@ final class ResponseUtils {
                 responses, r -> r.statusCode() == 201);
         checkAcks(acks, expectedAcks,
                 () -> new Response(Response.CREATED, Response.EMPTY),
+                isStalled(responses),
                 session);
     }
 
@@ -53,6 +75,7 @@ final class ResponseUtils {
                 responses, r -> r.statusCode() == 202);
         checkAcks(acks, expectedAcks,
                 () -> new Response(Response.ACCEPTED, Response.EMPTY),
+                isStalled(responses),
                 session);
     }
 
@@ -66,6 +89,7 @@ final class ResponseUtils {
                 responses, r -> values.add(Value.from(r)));
         checkAcks(acks, expectedAcks,
                 () -> Value.transform(Value.merge(values), false),
+                false,
                 session);
     }
 
@@ -90,22 +114,38 @@ final class ResponseUtils {
         return acks;
     }
 
+    /**
+     * Tells whether a replica has rejected the write with 503 Service Unavailable,
+     * i.e. its storage stalls writes.
+     *
+     * @param responses a list of {@code HttpResponse<byte[]>}
+     * @return true if any response is 503
+     */
+    private static boolean isStalled(@NotNull final List<HttpResponse<byte[]>> responses) {
+        return responses.stream().anyMatch(r -> r.statusCode() == 503);
+    }
+
     /**
      * Sends a specific response if {@code acks == expectedAcks}
-     * else sends the error 504 Gateway Timeout.
+     * else sends the error 503 Service Unavailable if a replica stalls writes,
+     * so the client backs off, or 504 Gateway Timeout otherwise.
      *
      * @param acks acks
      * @param expectedAcks an expected value of acks
      * @param supplier a {@code Supplier<Response>} whose a returned {@link Response} is used
      *                 when {@code acks >= expectedAcks}
+     * @param stalled true if a replica has rejected the request as its storage stalls writes
      * @param session a {@link HttpSession}
      */
     private static void checkAcks(final int acks,
                                   final int expectedAcks,
                                   @NotNull final Supplier<Response> supplier,
+                                  final boolean stalled,
                                   @NotNull final HttpSession session) {
         if (acks >= expectedAcks) {
             sendResponse(session, supplier.get());
+        } else if (stalled) {
+            sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
         } else {
             sendResponse(session, new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
         }
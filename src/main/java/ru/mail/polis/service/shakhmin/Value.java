@@ -5,13 +5,16 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.shakhmin.Cell;
 import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Locale;
 
 final class Value implements Comparable<Value> {
-    private static final String TIMESTAMP_HEADER_NAME = "X-OK-Timestamp";
+    static final String TIMESTAMP_HEADER_NAME = "X-OK-Timestamp";
     private static final Value ABSENT = new Value(null, -1, State.ABSENT);
+    private static final State[] STATES = State.values();
 
     @Nullable private final byte[] data;
     private final long timestamp;
@@ -108,6 +111,63 @@ final class Value implements Comparable<Value> {
                 .orElseGet(Value::absent);
     }
 
+    /**
+     * Returns the size of the value in a multi-get response of a replica, see {@link #writeTo(ByteBuffer)}.
+     */
+    int serializedSize() {
+        return Byte.BYTES + Long.BYTES + Integer.BYTES + (data == null ? 0 : data.length);
+    }
+
+    /**
+     * Writes the value to a multi-get response of a replica as
+     * {@code [state (byte)][timestamp (long)][data size (int)][data]}.
+     *
+     * @param buffer buffer to write to
+     */
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.put((byte) state.ordinal())
+                .putLong(timestamp)
+                .putInt(data == null ? 0 : data.length);
+        if (data != null) {
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer buffer to read from
+     * @return value
+     * @throws IllegalArgumentException if the value is malformed
+     */
+    @NotNull
+    static Value readFrom(@NotNull final ByteBuffer buffer) {
+        try {
+            final int state = buffer.get();
+            if (state < 0 || state >= STATES.length) {
+                throw new IllegalArgumentException("Wrong state " + state);
+            }
+            final long timestamp = buffer.getLong();
+            // The size is checked before the allocation, so a malformed response can't exhaust the heap
+            final int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining()) {
+                throw new IllegalArgumentException("Wrong size " + size);
+            }
+            final var data = new byte[size];
+            buffer.get(data);
+            switch (STATES[state]) {
+                case PRESENT:
+                    return present(data, timestamp);
+                case REMOVED:
+                    return removed(timestamp);
+                default:
+                    return absent();
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated value", e);
+        }
+    }
+
     @Nullable
     byte[] getData() {
         return data == null
@@ -129,6 +189,9 @@ final class Value implements Comparable<Value> {
         return Long.compare(Math.abs(timestamp), Math.abs(value.timestamp));
     }
 
+    /**
+     * State of a value, the ordinal is written to multi-get responses.
+     */
     private enum State {
         PRESENT,
         REMOVED,
@@ -0,0 +1,166 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackgroundCompactionTest extends TestBase {
+    private static final int KEYS_COUNT = 1000;
+
+    @Test
+    void tablesNumberBounded(@TempDir final File data) throws IOException, InterruptedException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (var dao = new LSMDao.Builder(data)
+                .flushThreshold(64 * 1024)
+                .compactionStrategy(tables -> Collections.emptyNavigableMap())
+                .maxTables(2)
+                .compactionRateLimit(16 * 1024 * 1024)
+                .build()) {
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final var key = randomKeyBuffer();
+                final var value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (tablesNumber(data) > 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(tablesNumber(data) <= 2);
+        }
+
+        try (var dao = new LSMDao.Builder(data).build()) {
+            for (final var entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void readsDuringCompaction(@TempDir final File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (var dao = new LSMDao.Builder(data).flushThreshold(16 * 1024).build()) {
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final var key = randomKeyBuffer();
+                final var value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final var compactor = Executors.newSingleThreadExecutor();
+            try {
+                final Future<?> compaction = compactor.submit(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        for (int j = 0; j < KEYS_COUNT / 10; j++) {
+                            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+                        }
+                        dao.compact();
+                    }
+                    return null;
+                });
+                while (!compaction.isDone()) {
+                    for (final var entry : expected.entrySet()) {
+                        assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                    }
+                }
+                compaction.get();
+            } finally {
+                compactor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void tombstonesPurged(@TempDir final File data) throws IOException {
+        assertEquals(0, tombstonesAfterMajorCompaction(data, 0));
+    }
+
+    @Test
+    void tombstonesKeptWithinGracePeriod(@TempDir final File data) throws IOException {
+        assertEquals(KEYS_COUNT, tombstonesAfterMajorCompaction(data, 1));
+    }
+
+    @Test
+    void tombstoneKeptWhileShadowingNewerTable(@TempDir final File data) throws Exception {
+        final var key = randomKeyBuffer();
+        final long timestamp = new HybridClock().now() - (1000L << HybridClock.LOGICAL_BITS);
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.remove(key, timestamp);
+        }
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+        // The late write is flushed to a table newer than the one of the tombstone
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.upsert(key, randomValueBuffer(), timestamp - 5);
+        }
+        final var selected = new AtomicBoolean();
+        final var merged = new CountDownLatch(1);
+        // Merges the table of the tombstone and the next one, leaving the table of the late write out
+        final CompactionStrategy oldestTwo = tables -> {
+            if (selected.get()) {
+                merged.countDown();
+            } else if (tables.size() > 3) {
+                selected.set(true);
+                return tables.headMap(tables.higherKey(tables.firstKey()), true);
+            }
+            return Collections.emptyNavigableMap();
+        };
+        try (var dao = new LSMDao.Builder(data)
+                .flushThreshold(1024)
+                .compactionStrategy(oldestTwo)
+                .tombstoneGracePeriod(0, TimeUnit.DAYS)
+                .build()) {
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (merged.getCount() > 0 && System.currentTimeMillis() < deadline) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            assertTrue(merged.await(30, TimeUnit.SECONDS));
+            assertTrue(dao.getCell(key).isRemoved());
+        }
+    }
+
+    private static long tombstonesAfterMajorCompaction(final File data,
+                                                      final long gracePeriodInDays) throws IOException {
+        final var keys = new ArrayList<ByteBuffer>(KEYS_COUNT);
+        try (var dao = new LSMDao.Builder(data).build()) {
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final var key = randomKeyBuffer();
+                dao.upsert(key, randomValueBuffer());
+                keys.add(key);
+            }
+        }
+        try (var dao = new LSMDao.Builder(data).build()) {
+            for (final var key : keys) {
+                dao.remove(key);
+            }
+        }
+        try (var dao = new LSMDao.Builder(data)
+                .tombstoneGracePeriod(gracePeriodInDays, TimeUnit.DAYS)
+                .build()) {
+            dao.compact();
+            assertEquals(1, tablesNumber(data));
+            final var path = data.listFiles((dir, name) -> name.matches("SSTable_\\d+\\.bin"))[0].toPath();
+            final var table = new SSTable(path, 0, Codec.NONE, new BlockCache(0));
+            assertEquals(table.tombstonesNumber(), table.rowsNumber());
+            return table.tombstonesNumber();
+        }
+    }
+
+    private static int tablesNumber(final File data) {
+        return data.listFiles((dir, name) -> name.matches("SSTable_\\d+\\.bin")).length;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest extends TestBase {
+    private static final int KEYS_COUNT = 100_000;
+
+    @Test
+    void noFalseNegatives() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS_COUNT);
+        final long[] hashes = new long[KEYS_COUNT];
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            keys.add(key);
+            hashes[i] = BloomFilter.hash(key);
+        }
+        final var filter = BloomFilter.create(hashes, KEYS_COUNT);
+        for (final var key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void falsePositives() {
+        final long[] hashes = new long[KEYS_COUNT];
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            hashes[i] = BloomFilter.hash(randomKeyBuffer());
+        }
+        final var filter = BloomFilter.create(hashes, KEYS_COUNT);
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            if (filter.mightContain(randomKeyBuffer())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < KEYS_COUNT / 50);
+    }
+
+    @Test
+    void writeAndRead() {
+        final var key = randomKeyBuffer();
+        final var filter = BloomFilter.create(new long[]{BloomFilter.hash(key)}, 1);
+        final var buffer = ByteBuffer.allocate(filter.wordsNumber() * Long.BYTES);
+        filter.writeTo(buffer);
+        final var read = BloomFilter.of(buffer.flip().asLongBuffer(), filter.hashesNumber());
+        assertEquals(filter.wordsNumber(), read.wordsNumber());
+        assertTrue(read.mightContain(key));
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClockCacheTest {
+    private static final int VALUE_SIZE = 100;
+
+    @Test
+    void boundedByCapacity() {
+        final var cache = new ClockCache<Long, byte[]>(VALUE_SIZE * 10, 1, v -> v.length);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, new byte[VALUE_SIZE]);
+            assertTrue(cache.weight() <= VALUE_SIZE * 10);
+        }
+        assertEquals(VALUE_SIZE * 10, cache.weight());
+        assertNull(cache.get(0L));
+        assertNotNull(cache.get(999L));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    void referencedSurvive() {
+        final var cache = new ClockCache<Long, byte[]>(VALUE_SIZE * 10, 1, v -> v.length);
+        cache.put(-1L, new byte[VALUE_SIZE]);
+        for (long i = 0; i < 1000; i++) {
+            assertNotNull(cache.get(-1L));
+            cache.put(i, new byte[VALUE_SIZE]);
+        }
+        assertNotNull(cache.get(-1L));
+    }
+
+    @Test
+    void invalidate() {
+        final var cache = new ClockCache<Long, byte[]>(VALUE_SIZE * 10, 1, v -> v.length);
+        cache.put(1L, new byte[VALUE_SIZE]);
+        cache.put(1L, new byte[VALUE_SIZE]);
+        assertEquals(VALUE_SIZE, cache.weight());
+        cache.invalidate(1L);
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void offHeapBlocks() {
+        final var cache = new BlockCache(VALUE_SIZE * 16, true);
+        cache.put(1, 2, ByteBuffer.wrap(new byte[VALUE_SIZE]));
+        final var block = cache.get(1, 2);
+        assertNotNull(block);
+        assertTrue(block.isDirect());
+        assertEquals(VALUE_SIZE, block.remaining());
+        assertNull(cache.get(2, 1));
+    }
+}
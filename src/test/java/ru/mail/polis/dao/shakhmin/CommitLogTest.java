@@ -0,0 +1,161 @@
+package ru.mail.polis.dao.shakhmin;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.WriteBatch;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommitLogTest extends TestBase {
+    private static final int RECORDS_COUNT = 1000;
+
+    @Test
+    void replay(@TempDir final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = writeUnclosed(data, 0);
+        final var table = CommitLog.replay(CommitLog.segment(data.toPath(), 0));
+        for (final var entry : expected.entrySet()) {
+            final var row = table.get(entry.getKey());
+            if (entry.getValue() == null) {
+                assertTrue(row.getCell().isRemoved());
+            } else {
+                assertEquals(entry.getValue(), row.getCell().getData());
+            }
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir final File data) throws IOException {
+        writeUnclosed(data, 0);
+        final var segment = CommitLog.segment(data.toPath(), 0);
+        final long size = Files.size(segment);
+        try (var fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            fc.truncate(size - 1);
+        }
+        assertEquals(RECORDS_COUNT - 1, rowsNumber(CommitLog.replay(segment)));
+
+        try (var fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            fc.write(ByteBuffer.wrap(new byte[]{42}), size / 2);
+        }
+        assertTrue(rowsNumber(CommitLog.replay(segment)) < RECORDS_COUNT / 2 + 1);
+    }
+
+    @Test
+    void batchReplayedAllOrNone(@TempDir final File data) throws IOException {
+        final var commitLog = new CommitLog(data.toPath(), 0, false);
+        commitLog.sync(commitLog.append(randomKeyBuffer(), Cell.of(1, randomValueBuffer())));
+        final var batch = new WriteBatch();
+        final var removed = randomKeyBuffer();
+        batch.upsert(removed, randomValueBuffer()).remove(removed);
+        for (int i = 0; i < RECORDS_COUNT; i++) {
+            batch.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+        commitLog.sync(commitLog.append(batch, 2));
+        final var segment = CommitLog.segment(data.toPath(), 0);
+        final var table = CommitLog.replay(segment);
+        assertEquals(RECORDS_COUNT + 2, rowsNumber(table));
+        assertTrue(table.get(removed).getCell().isRemoved());
+        final var last = batch.writes().get(RECORDS_COUNT + 1);
+        assertEquals(last.getValue(), table.get(last.getKey()).getCell().getData());
+
+        try (var fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            fc.truncate(Files.size(segment) - 1);
+        }
+        assertEquals(1, rowsNumber(CommitLog.replay(segment)));
+    }
+
+    @Test
+    void failedWriteNotAcknowledged(@TempDir final File data) throws IOException {
+        final var commitLog = new CommitLog(data.toPath(), 0, false);
+        final long first = commitLog.append(randomKeyBuffer(), Cell.of(1, randomValueBuffer()));
+        final long second = commitLog.append(randomKeyBuffer(), Cell.of(2, randomValueBuffer()));
+        // An interrupted write closes the channel, so the batch of both records is lost
+        Thread.currentThread().interrupt();
+        assertThrows(IOException.class, () -> commitLog.sync(first));
+        assertTrue(Thread.interrupted());
+        assertThrows(IOException.class, () -> commitLog.sync(second));
+        final long third = commitLog.append(randomKeyBuffer(), Cell.of(3, randomValueBuffer()));
+        assertThrows(IOException.class, () -> commitLog.sync(third));
+
+        commitLog.rotate(1);
+        commitLog.sync(commitLog.append(randomKeyBuffer(), Cell.of(4, randomValueBuffer())));
+        assertThrows(IOException.class, () -> commitLog.sync(second));
+        commitLog.close();
+        assertEquals(1, rowsNumber(CommitLog.replay(CommitLog.segment(data.toPath(), 1))));
+    }
+
+    @Test
+    void failuresKeptPerSegment(@TempDir final File data) throws IOException {
+        final var commitLog = new CommitLog(data.toPath(), 0, false);
+        final long lost = commitLog.append(randomKeyBuffer(), Cell.of(1, randomValueBuffer()));
+        Thread.currentThread().interrupt();
+        assertThrows(IOException.class, () -> commitLog.sync(lost));
+        assertTrue(Thread.interrupted());
+
+        commitLog.rotate(1);
+        final long durable = commitLog.append(randomKeyBuffer(), Cell.of(2, randomValueBuffer()));
+        commitLog.sync(durable);
+        final long lostLater = commitLog.append(randomKeyBuffer(), Cell.of(3, randomValueBuffer()));
+        Thread.currentThread().interrupt();
+        assertThrows(IOException.class, () -> commitLog.sync(lostLater));
+        assertTrue(Thread.interrupted());
+        // A writer of the synced segment may come to wait for its record late
+        commitLog.sync(durable);
+
+        commitLog.rotate(2);
+        commitLog.sync(commitLog.append(randomKeyBuffer(), Cell.of(4, randomValueBuffer())));
+        commitLog.sync(durable);
+        assertThrows(IOException.class, () -> commitLog.sync(lost));
+        assertThrows(IOException.class, () -> commitLog.sync(lostLater));
+        commitLog.close();
+        assertEquals(1, rowsNumber(CommitLog.replay(CommitLog.segment(data.toPath(), 1))));
+        assertEquals(1, rowsNumber(CommitLog.replay(CommitLog.segment(data.toPath(), 2))));
+    }
+
+    @Test
+    void recoverStorage(@TempDir final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = writeUnclosed(data, 5);
+        try (var dao = new LSMDao.Builder(data).build()) {
+            for (final var entry : expected.entrySet()) {
+                final var cell = dao.getCell(entry.getKey());
+                if (entry.getValue() == null) {
+                    assertTrue(cell.isRemoved());
+                } else {
+                    assertEquals(entry.getValue(), cell.getData());
+                }
+            }
+            assertNull(dao.getCell(randomKeyBuffer()));
+        }
+        assertFalse(Files.exists(CommitLog.segment(data.toPath(), 5)));
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> writeUnclosed(final File data,
+                                                             final long serialNumber) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final var commitLog = new CommitLog(data.toPath(), serialNumber, false);
+        for (int i = 0; i < RECORDS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var value = i % 10 == 0 ? null : randomValueBuffer();
+            final var cell = value == null ? Cell.tombstone(i + 1) : Cell.of(i + 1, value);
+            commitLog.sync(commitLog.append(key, cell));
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static int rowsNumber(final MemTable table) throws IOException {
+        return Iterators.size(table.iterator(ByteBuffer.allocate(0)));
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactionStrategyTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void sizeTieredMergesSimilarTables() {
+        final var strategy = new SizeTieredCompactionStrategy(4, 32);
+        assertTrue(strategy.select(tables(100 * MB, 4 * MB, 4 * MB, 4 * MB)).isEmpty());
+        final var run = strategy.select(tables(100 * MB, 4 * MB, 4 * MB, 5 * MB, 4 * MB));
+        assertEquals(List.of(1L, 2L, 3L, 4L), List.copyOf(run.keySet()));
+    }
+
+    @Test
+    void sizeTieredRespectsMaxThreshold() {
+        final var strategy = new SizeTieredCompactionStrategy(2, 3);
+        final var run = strategy.select(tables(MB, MB, MB, MB, MB));
+        assertEquals(3, run.size());
+    }
+
+    @Test
+    void leveledMergesIntoOlderLevel() {
+        final var strategy = new LeveledCompactionStrategy(4 * MB, 10, 4);
+        assertTrue(strategy.select(tables(500 * MB, 50 * MB, MB, MB)).isEmpty());
+        final var run = strategy.select(tables(500 * MB, 50 * MB, 60 * MB, MB));
+        assertEquals(List.of(1L, 2L), List.copyOf(run.keySet()));
+    }
+
+    @Test
+    void leveledLimitsLevel0() {
+        final var strategy = new LeveledCompactionStrategy(4 * MB, 10, 2);
+        assertTrue(strategy.select(tables(50 * MB, MB, MB)).isEmpty());
+        final var run = strategy.select(tables(50 * MB, MB, MB, MB));
+        assertEquals(List.of(1L, 2L, 3L), List.copyOf(run.keySet()));
+    }
+
+    private static NavigableMap<Long, Table> tables(final long... sizes) {
+        final NavigableMap<Long, Table> tables = new TreeMap<>();
+        for (int i = 0; i < sizes.length; i++) {
+            tables.put((long) i, new SizedTable(i, sizes[i]));
+        }
+        return tables;
+    }
+
+    private static final class SizedTable implements Table {
+        private final long serialNumber;
+        private final long sizeInBytes;
+
+        SizedTable(final long serialNumber,
+                   final long sizeInBytes) {
+            this.serialNumber = serialNumber;
+            this.sizeInBytes = sizeInBytes;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+            throw new UnsupportedOperationException();
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Row> descendingIterator(@Nullable final ByteBuffer to) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Nullable
+        @Override
+        public Row get(@NotNull final ByteBuffer key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void upsert(@NotNull final ByteBuffer key,
+                           @NotNull final ByteBuffer value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return sizeInBytes;
+        }
+
+        @Override
+        public long serialNumber() {
+            return serialNumber;
+        }
+    }
+}
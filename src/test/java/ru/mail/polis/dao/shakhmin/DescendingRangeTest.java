@@ -0,0 +1,108 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DescendingRangeTest extends TestBase {
+    private static final int KEYS_COUNT = 2000;
+    private static final int VALUE_SIZE = 100;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+
+    @Test
+    void reverseOfRange(@TempDir final File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final var dir = new File(data, String.valueOf(offHeap));
+            assertTrue(dir.mkdir());
+            try (var dao = new LSMDao.Builder(dir)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .offHeapMemTable(offHeap)
+                    .build()) {
+                assertSameRange(fill(dao), dao);
+            }
+        }
+    }
+
+    @Test
+    void shardsMerged(@TempDir final File data) throws IOException {
+        try (var dao = new ShardedDao.Builder(data).shards(3).build()) {
+            assertSameRange(fill(dao), dao);
+        }
+    }
+
+    @Test
+    void snapshotReadBackwards(@TempDir final File data) throws IOException {
+        try (var dao = new LSMDao.Builder(data).flushThreshold(FLUSH_THRESHOLD).build()) {
+            final var expected = fill(dao);
+            try (var snapshot = dao.snapshot()) {
+                for (final var key : expected.keySet()) {
+                    dao.remove(key);
+                }
+                final var from = expected.firstKey();
+                assertSameRecords(expected.descendingMap(), snapshot.descendingRange(from, null));
+                assertFalse(dao.descendingRange(from, null).hasNext());
+            }
+        }
+    }
+
+    /**
+     * Writes random keys, overwrites some of them and removes others, so the records
+     * are spread over the memory table and several SSTables with tombstones among them.
+     */
+    @NotNull
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(@NotNull final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var value = randomBuffer(VALUE_SIZE);
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        int i = 0;
+        for (final var key : new ArrayList<>(expected.keySet())) {
+            if (i % 3 == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else if (i % 3 == 1) {
+                final var value = randomBuffer(VALUE_SIZE);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            i++;
+        }
+        return expected;
+    }
+
+    private static void assertSameRange(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+                                        @NotNull final DAO dao) throws IOException {
+        final var keys = new ArrayList<>(expected.keySet());
+        final var from = keys.get(keys.size() / 4);
+        final var to = keys.get(keys.size() / 2);
+        assertSameRecords(expected.descendingMap(), dao.descendingRange(ByteBuffer.allocate(0), null));
+        assertSameRecords(expected.subMap(from, true, to, false).descendingMap(), dao.descendingRange(from, to));
+        assertSameRecords(expected.tailMap(from, true).descendingMap(), dao.descendingRange(from, null));
+        assertFalse(dao.descendingRange(to, from).hasNext());
+        assertFalse(dao.descendingRange(from, from).hasNext());
+    }
+
+    private static void assertSameRecords(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+                                          @NotNull final Iterator<Record> records) {
+        for (final var entry : expected.entrySet()) {
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), records.next());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HybridClockTest extends TestBase {
+
+    @Test
+    void timestampsGrow() {
+        final var clock = new HybridClock();
+        final long millis = System.currentTimeMillis();
+        long last = clock.now();
+        for (int i = 0; i < 100_000; i++) {
+            final long next = clock.now();
+            assertTrue(next > last);
+            last = next;
+        }
+        assertTrue(HybridClock.physicalMillis(last) >= millis);
+        assertEquals(millis, HybridClock.physicalMillis(millis));
+
+        final long ahead = (millis + HybridClock.MAX_OFFSET_MILLIS / 2) << HybridClock.LOGICAL_BITS;
+        clock.update(ahead);
+        assertTrue(clock.now() > ahead);
+    }
+
+    @Test
+    void lateWriteNotShadowingNewer(@TempDir final File data) throws IOException {
+        final var key = randomKeyBuffer();
+        final var newer = randomValueBuffer();
+        final long timestamp = new HybridClock().now();
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.upsert(key, newer, timestamp);
+        }
+        // The newer value is flushed on close, while the late write lands in the memory table
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.upsert(key, randomValueBuffer(), timestamp - 5);
+            assertEquals(newer, dao.get(key));
+            assertEquals(newer, dao.iterator(key).next().getValue());
+            dao.remove(key, timestamp + 10);
+        }
+        // Nor does a late write resurrect a flushed newer tombstone
+        try (var dao = new LSMDao.Builder(data).build()) {
+            dao.upsert(key, randomValueBuffer(), timestamp + 1);
+            assertTrue(dao.getCell(key).isRemoved());
+            assertFalse(dao.iterator(key).hasNext() && dao.iterator(key).next().getKey().equals(key));
+        }
+    }
+
+    @Test
+    void badTimestampsRejected() {
+        final var clock = new HybridClock();
+        final long farAhead = (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)) << HybridClock.LOGICAL_BITS;
+        assertThrows(IllegalArgumentException.class, () -> clock.update(farAhead));
+        assertThrows(IllegalArgumentException.class, () -> clock.update(0L));
+        // The clock hasn't adopted the timestamp from the future
+        assertTrue(HybridClock.physicalMillis(clock.now()) <= System.currentTimeMillis());
+    }
+
+    @Test
+    void timestampStoredAsIs(@TempDir final File data) throws IOException {
+        try (var dao = new ShardedDao.Builder(data).shards(2).build()) {
+            final var key = randomKeyBuffer();
+            final var value = randomValueBuffer();
+            final long timestamp = new HybridClock().now() + (1L << HybridClock.LOGICAL_BITS);
+            dao.upsert(key, value, timestamp);
+            assertEquals(timestamp, dao.getCell(key).getTimestamp());
+
+            dao.remove(key, timestamp - 1);
+            assertEquals(value, dao.get(key));
+
+            // The clock of the storage has caught up with the timestamp from the future
+            dao.remove(key);
+            assertTrue(dao.getCell(key).isRemoved());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestTest extends TestBase {
+    private static final int KEYS_COUNT = 1000;
+
+    @Test
+    void replay(@TempDir final File data) throws IOException {
+        final var dir = data.toPath();
+        final var expected = new TreeMap<Long, Long>();
+        try (var manifest = new Manifest(dir, new TreeMap<>(), false)) {
+            for (long serialNumber = 0; serialNumber < 5; serialNumber++) {
+                final long fileId = manifest.nextFileId();
+                manifest.add(serialNumber, fileId);
+                expected.put(serialNumber, fileId);
+            }
+            final long fileId = manifest.nextFileId();
+            manifest.replace(List.of(1L, 2L, 3L), 3L, fileId);
+            expected.keySet().removeAll(List.of(1L, 2L));
+            expected.put(3L, fileId);
+            assertEquals(expected, manifest.tables());
+        }
+        try (var manifest = new Manifest(dir, new TreeMap<>(), false)) {
+            assertEquals(expected, manifest.tables());
+            assertEquals(6, manifest.nextFileId());
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir final File data) throws IOException {
+        final var dir = data.toPath();
+        try (var manifest = new Manifest(dir, new TreeMap<>(), false)) {
+            manifest.add(0, manifest.nextFileId());
+            manifest.add(1, manifest.nextFileId());
+        }
+        final var path = dir.resolve(Manifest.NAME);
+        Files.write(path, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+        try (var manifest = new Manifest(dir, new TreeMap<>(), false)) {
+            assertEquals(Map.of(0L, 0L, 1L, 1L), manifest.tables());
+        }
+    }
+
+    @Test
+    void garbageDeleted(@TempDir final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (var dao = new LSMDao.Builder(data).build()) {
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final var key = randomKeyBuffer();
+                final var value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        // Leftover of a compaction interrupted before it has been recorded
+        final var garbage = data.toPath().resolve("SSTable_1000.bin");
+        try (var files = Files.list(data.toPath())) {
+            final var table = files.filter(f -> f.getFileName().toString().startsWith("SSTable_"))
+                    .findAny()
+                    .orElseThrow();
+            Files.copy(table, garbage);
+        }
+        try (var dao = new LSMDao.Builder(data).build()) {
+            assertFalse(Files.exists(garbage));
+            for (final var entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            dao.compact();
+        }
+        assertTrue(Files.exists(data.toPath().resolve(Manifest.NAME)));
+    }
+}
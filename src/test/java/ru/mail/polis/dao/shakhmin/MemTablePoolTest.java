@@ -0,0 +1,143 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemTablePoolTest extends TestBase {
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+
+    @Test
+    void writesStallWhileFlushesFallBehind(@TempDir final File data) throws IOException {
+        final var pool = new AtomicReference<MemTablePool>();
+        // Takes the tables, but never completes their flushes
+        final Runnable flushingTask = () -> {
+            try {
+                pool.get().takeToFlush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try (var commitLog = new CommitLog(data.toPath(), 0, false)) {
+            pool.set(new MemTablePool.Builder(flushingTask, commitLog)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .maxPendingTables(1)
+                    .writeStallTimeout(100, TimeUnit.MILLISECONDS)
+                    .build());
+            assertThrows(WriteStallException.class, () -> {
+                while (true) {
+                    pool.get().upsert(randomKeyBuffer(), randomValueBuffer());
+                }
+            });
+            assertEquals(1, pool.get().serialNumber());
+
+            pool.get().flushed(0);
+            final var key = randomKeyBuffer();
+            final var value = randomValueBuffer();
+            pool.get().upsert(key, value);
+            assertEquals(value, pool.get().get(key).getCell().getData());
+            pool.get().close();
+        }
+    }
+
+    @Test
+    void flushesCompletingOutOfOrderKeepBound(@TempDir final File data) throws IOException {
+        final var pool = new AtomicReference<MemTablePool>();
+        // Takes the tables, the test completes their flushes
+        final Runnable flushingTask = () -> {
+            try {
+                pool.get().takeToFlush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try (var commitLog = new CommitLog(data.toPath(), 0, false)) {
+            pool.set(new MemTablePool.Builder(flushingTask, commitLog)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .maxPendingTables(3)
+                    .build());
+            while (pool.get().serialNumber() < 2) {
+                pool.get().upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            assertEquals(0, pool.get().lowestUnflushedSerialNumber());
+
+            pool.get().flushed(1);
+            assertEquals(0, pool.get().lowestUnflushedSerialNumber());
+            pool.get().flushed(0);
+            assertEquals(2, pool.get().lowestUnflushedSerialNumber());
+            pool.get().close();
+        }
+    }
+
+    @Test
+    void failedRotationLeavesPoolIntact(@TempDir final File data) throws IOException {
+        final var pool = new AtomicReference<MemTablePool>();
+        final Runnable flushingTask = () -> {
+            try {
+                pool.get().takeToFlush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try (var commitLog = new CommitLog(data.toPath(), 0, false)) {
+            pool.set(new MemTablePool.Builder(flushingTask, commitLog)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .build());
+            // The next segment can't be created while a file with its name exists
+            final var next = CommitLog.segment(data.toPath(), 1);
+            Files.createFile(next);
+            assertThrows(IOException.class, () -> {
+                while (true) {
+                    pool.get().upsert(randomKeyBuffer(), randomValueBuffer());
+                }
+            });
+            assertEquals(0, pool.get().serialNumber());
+            assertEquals(0, pool.get().lowestUnflushedSerialNumber());
+
+            Files.delete(next);
+            pool.get().upsert(randomKeyBuffer(), randomValueBuffer());
+            assertEquals(1, pool.get().serialNumber());
+            assertEquals(0, pool.get().lowestUnflushedSerialNumber());
+            pool.get().flushed(0);
+            assertEquals(1, pool.get().lowestUnflushedSerialNumber());
+            pool.get().close();
+        }
+    }
+
+    @Test
+    void stampedWritesStallShorter(@TempDir final File data) throws IOException {
+        final var pool = new AtomicReference<MemTablePool>();
+        // Takes the tables, but never completes their flushes
+        final Runnable flushingTask = () -> {
+            try {
+                pool.get().takeToFlush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        final var clock = new HybridClock();
+        try (var commitLog = new CommitLog(data.toPath(), 0, false)) {
+            pool.set(new MemTablePool.Builder(flushingTask, commitLog)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .maxPendingTables(1)
+                    .writeStallTimeout(1, TimeUnit.HOURS)
+                    .stampedWriteStallTimeout(100, TimeUnit.MILLISECONDS)
+                    .build());
+            assertThrows(WriteStallException.class, () -> {
+                while (true) {
+                    pool.get().upsert(randomKeyBuffer(), randomValueBuffer(), clock.now());
+                }
+            });
+            assertEquals(1, pool.get().serialNumber());
+            pool.get().flushed(0);
+            pool.get().close();
+        }
+    }
+}
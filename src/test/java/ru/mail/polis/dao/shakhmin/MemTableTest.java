@@ -0,0 +1,55 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import java.io.IOException;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemTableTest extends TestBase {
+    private static final int KEYS_COUNT = 1000;
+    private static final int VALUE_SIZE = 100;
+
+    @Test
+    void overheadAccounted() {
+        final var table = new MemTable();
+        long serialized = 0;
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var value = randomBuffer(VALUE_SIZE);
+            serialized += Row.getSizeOfFlushedRow(key, value);
+            table.put(key, Cell.of(i, value));
+        }
+        assertTrue(table.sizeInBytes() > serialized * 2);
+    }
+
+    @Test
+    void overwriteReleasesPreviousValue() {
+        final var table = new MemTable();
+        final var key = randomKeyBuffer();
+        table.put(key, Cell.of(0, randomBuffer(VALUE_SIZE)));
+        final long size = table.sizeInBytes();
+        for (int i = 1; i < KEYS_COUNT; i++) {
+            table.put(key.duplicate(), Cell.of(i, randomBuffer(VALUE_SIZE)));
+        }
+        assertEquals(size, table.sizeInBytes());
+
+        table.put(key.duplicate(), Cell.tombstone(KEYS_COUNT));
+        assertTrue(table.sizeInBytes() < size - VALUE_SIZE);
+    }
+
+    @Test
+    void olderCellIgnored() throws IOException {
+        for (final var table : new MutableTable[]{new MemTable(), new OffHeapMemTable()}) {
+            final var key = randomKeyBuffer();
+            final var value = randomBuffer(VALUE_SIZE);
+            table.put(key, Cell.of(2, value));
+            table.put(key, Cell.of(1, randomBuffer(VALUE_SIZE)));
+            table.put(key, Cell.tombstone(1));
+            assertEquals(value, table.get(key).getCell().getData());
+
+            table.put(key, Cell.tombstone(2));
+            assertTrue(table.get(key).getCell().isRemoved());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapMemTableTest extends TestBase {
+    private static final int KEYS_COUNT = 10_000;
+    private static final int WRITERS_COUNT = 4;
+
+    @Test
+    void sameAsHeapTable() {
+        final var table = new OffHeapMemTable();
+        final NavigableMap<ByteBuffer, Cell> expected = new TreeMap<>();
+        final var keys = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            final var key = i % 3 == 0 && !keys.isEmpty() ? keys.get(i % keys.size()) : randomKeyBuffer();
+            final var cell = i % 10 == 0 ? Cell.tombstone(i + 1) : Cell.of(i + 1, randomBuffer(i % 100));
+            table.put(key, cell);
+            expected.put(key, cell);
+            keys.add(key);
+        }
+        for (final var entry : expected.entrySet()) {
+            assertCellEquals(entry.getValue(), table.get(entry.getKey()).getCell());
+        }
+        assertNull(table.get(randomKeyBuffer()));
+
+        final var from = keys.get(KEYS_COUNT / 2);
+        final var iterator = table.iterator(from);
+        for (final var entry : expected.tailMap(from).entrySet()) {
+            final var row = iterator.next();
+            assertEquals(entry.getKey(), row.getKey());
+            assertCellEquals(entry.getValue(), row.getCell());
+        }
+        assertFalse(iterator.hasNext());
+        assertTrue(table.sizeInBytes() > 0);
+    }
+
+    @Test
+    void hugeValues() {
+        final var table = new OffHeapMemTable();
+        final NavigableMap<ByteBuffer, Cell> expected = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            final var key = randomKeyBuffer();
+            final int size = i % 2 == 0 ? 3 * OffHeapMemTable.CHUNK_SIZE : OffHeapMemTable.CHUNK_SIZE / 2;
+            final var cell = Cell.of(i + 1, randomBuffer(size));
+            table.put(key, cell);
+            table.put(randomKeyBuffer(), Cell.of(i + 1, randomValueBuffer()));
+            expected.put(key, cell);
+        }
+        for (final var entry : expected.entrySet()) {
+            assertCellEquals(entry.getValue(), table.get(entry.getKey()).getCell());
+        }
+    }
+
+    @Test
+    void readsDuringWrites() throws Exception {
+        final var table = new OffHeapMemTable();
+        final var keys = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final var writer = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> writes = writer.submit(() -> {
+                for (int i = 0; i < KEYS_COUNT; i++) {
+                    table.put(keys.get(i), Cell.of(i + 1, randomValueBuffer()));
+                }
+            });
+            while (!writes.isDone()) {
+                int count = 0;
+                final var iterator = table.iterator(ByteBuffer.allocate(0));
+                ByteBuffer last = null;
+                while (iterator.hasNext()) {
+                    final var key = iterator.next().getKey();
+                    assertTrue(last == null || last.compareTo(key) < 0);
+                    last = key;
+                    count++;
+                }
+                assertTrue(count <= KEYS_COUNT);
+            }
+            writes.get();
+        } finally {
+            writer.shutdown();
+        }
+        for (final var key : keys) {
+            assertNotNull(table.get(key));
+        }
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        final var table = new OffHeapMemTable();
+        final var keys = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final var writers = Executors.newFixedThreadPool(WRITERS_COUNT);
+        try {
+            final var writes = new ArrayList<Future<?>>();
+            for (int w = 0; w < WRITERS_COUNT; w++) {
+                final int writer = w;
+                writes.add(writers.submit(() -> {
+                    // Every writer puts every key, so the writers race to link the same keys
+                    for (int i = 0; i < KEYS_COUNT; i++) {
+                        final var key = keys.get((i + writer * KEYS_COUNT / WRITERS_COUNT) % KEYS_COUNT);
+                        table.put(key, Cell.of(writer + 1, randomValueBuffer()));
+                        assertNotNull(table.get(key));
+                    }
+                }));
+            }
+            for (final var write : writes) {
+                write.get();
+            }
+        } finally {
+            writers.shutdown();
+        }
+        final NavigableMap<ByteBuffer, Boolean> expected = new TreeMap<>();
+        for (final var key : keys) {
+            assertEquals(WRITERS_COUNT, table.get(key).getCell().getTimestamp());
+            expected.put(key, true);
+        }
+        final var iterator = table.iterator(ByteBuffer.allocate(0));
+        for (final var key : expected.keySet()) {
+            assertEquals(key, iterator.next().getKey());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static void assertCellEquals(final Cell expected,
+                                         final Cell actual) {
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getData(), actual.getData());
+    }
+}
@@ -0,0 +1,49 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RowCacheTest extends TestBase {
+    private static final long CAPACITY = 1024 * 1024;
+
+    @Test
+    void absentCached() throws IOException {
+        final var cache = new RowCache(CAPACITY);
+        final var loads = new AtomicInteger();
+        final var key = randomKeyBuffer();
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.get(key, k -> {
+                loads.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void invalidatedOnWrite() throws IOException {
+        final var cache = new RowCache(CAPACITY);
+        final var key = randomKeyBuffer();
+        final var value = randomValueBuffer();
+        assertNull(cache.get(key, k -> null));
+        cache.invalidate(key);
+        assertEquals(value, cache.get(key, k -> Cell.of(1, value)).getData());
+        assertEquals(value, cache.get(key, k -> null).getData());
+    }
+
+    @Test
+    void staleLoadDropped() throws IOException {
+        final var cache = new RowCache(CAPACITY);
+        final var key = randomKeyBuffer();
+        final var value = randomValueBuffer();
+        assertNull(cache.get(key, k -> {
+            cache.invalidate(k);
+            return null;
+        }));
+        assertEquals(value, cache.get(key, k -> Cell.of(1, value)).getData());
+    }
+}
@@ -0,0 +1,207 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SSTableTest extends TestBase {
+    private static final int ROWS_COUNT = 10_000;
+
+    @Test
+    void readWritten(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var cell = i % 10 == 0
+                    ? Cell.tombstone(i + 1)
+                    : Cell.of(i + 1, randomBuffer(i % 100 + 1));
+            rows.put(key, Row.of(key, cell, 0));
+        }
+        final var table = flushAndOpen(data, rows);
+
+        for (final var row : rows.values()) {
+            final var read = table.get(row.getKey());
+            assertRowEquals(row, read);
+        }
+        assertNull(table.get(randomKeyBuffer()));
+
+        final var from = new ArrayList<>(rows.keySet()).get(ROWS_COUNT / 3);
+        final var expected = rows.tailMap(from).values().iterator();
+        final var actual = table.iterator(from);
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            assertRowEquals(expected.next(), actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    @Test
+    void seekBetweenKeys(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        for (int i = 0; i < ROWS_COUNT; i += 2) {
+            final var key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            rows.put(key, Row.of(key, Cell.of(1, randomValueBuffer()), 0));
+        }
+        final var table = flushAndOpen(data, rows);
+        for (int i = -1; i < ROWS_COUNT; i += 2) {
+            final var from = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            final var iterator = table.iterator(from);
+            assertNull(table.get(from));
+            if (i + 1 < ROWS_COUNT) {
+                assertEquals(rows.ceilingKey(from), iterator.next().getKey());
+            } else {
+                assertFalse(iterator.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void readBackwards(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var cell = i % 10 == 0
+                    ? Cell.tombstone(i + 1)
+                    : Cell.of(i + 1, randomBuffer(i % 100 + 1));
+            rows.put(key, Row.of(key, cell, 0));
+        }
+        final var table = flushAndOpen(data, rows);
+
+        assertRowsEqual(rows.descendingMap().values(), table.descendingIterator(null));
+        final var to = new ArrayList<>(rows.keySet()).get(ROWS_COUNT / 3);
+        assertRowsEqual(rows.headMap(to, false).descendingMap().values(), table.descendingIterator(to));
+    }
+
+    @Test
+    void seekBackwardsBetweenKeys(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        for (int i = 0; i < ROWS_COUNT; i += 2) {
+            final var key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            rows.put(key, Row.of(key, Cell.of(1, randomValueBuffer()), 0));
+        }
+        final var table = flushAndOpen(data, rows);
+        for (int i = -1; i <= ROWS_COUNT; i++) {
+            final var to = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            final var iterator = table.descendingIterator(to);
+            final var expected = rows.lowerKey(to);
+            if (expected == null) {
+                assertFalse(iterator.hasNext());
+            } else {
+                assertEquals(expected, iterator.next().getKey());
+            }
+        }
+        assertFalse(table.descendingIterator(rows.firstKey()).hasNext());
+    }
+
+    @Test
+    void empty(@TempDir final File data) throws IOException {
+        final var table = flushAndOpen(data, new TreeMap<>());
+        assertNull(table.get(randomKeyBuffer()));
+        assertFalse(table.iterator(ByteBuffer.allocate(0)).hasNext());
+        assertFalse(table.descendingIterator(null).hasNext());
+    }
+
+    @Test
+    void compressed(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        final var value = ByteBuffer.wrap(new byte[KEY_LENGTH * 10]);
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            rows.put(key, Row.of(key, Cell.of(i + 1, i % 2 == 0 ? value : join(key, key)), 0));
+        }
+        final var codec = new DeflateCodec();
+        final var table = flushAndOpen(data, rows, codec, new BlockCache(1024 * 1024));
+        assertTrue(table.sizeInBytes() < ROWS_COUNT * (KEY_LENGTH + value.remaining()));
+        for (final var row : rows.values()) {
+            assertRowEquals(row, table.get(row.getKey()));
+        }
+        final var iterator = table.iterator(ByteBuffer.allocate(0));
+        for (final var row : rows.values()) {
+            assertRowEquals(row, iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        final var value = ByteBuffer.allocate(1);
+        long keysSize = 0;
+        for (int i = 0; i < ROWS_COUNT; i++) {
+            final var key = ByteBuffer.wrap(String.format("some/long/common/prefix/%08d", i * 2).getBytes(UTF_8));
+            keysSize += key.remaining();
+            rows.put(key, Row.of(key, Cell.of(i + 1, value), 0));
+        }
+        final var table = flushAndOpen(data, rows);
+        assertTrue(table.sizeInBytes() < keysSize);
+        for (final var row : rows.values()) {
+            assertRowEquals(row, table.get(row.getKey()));
+        }
+        for (int i = 1; i < ROWS_COUNT * 2; i += 2) {
+            final var from = ByteBuffer.wrap(String.format("some/long/common/prefix/%08d", i).getBytes(UTF_8));
+            assertNull(table.get(from));
+            final var iterator = table.iterator(from);
+            if (i + 1 < ROWS_COUNT * 2) {
+                assertEquals(rows.ceilingKey(from), iterator.next().getKey());
+            } else {
+                assertFalse(iterator.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void valuesLargerThanBuffer(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, Row> rows = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            final var key = randomKeyBuffer();
+            rows.put(key, Row.of(key, Cell.of(i + 1, randomBuffer(i % 2 == 0 ? 3 * 1024 * 1024 : 10)), 0));
+        }
+        final var table = flushAndOpen(data, rows, new DeflateCodec(), new BlockCache(0));
+        for (final var row : rows.values()) {
+            assertRowEquals(row, table.get(row.getKey()));
+        }
+    }
+
+    private static SSTable flushAndOpen(final File data,
+                                        final NavigableMap<ByteBuffer, Row> rows) throws IOException {
+        return flushAndOpen(data, rows, Codec.NONE, new BlockCache(0));
+    }
+
+    private static SSTable flushAndOpen(final File data,
+                                        final NavigableMap<ByteBuffer, Row> rows,
+                                        final Codec codec,
+                                        final BlockCache blockCache) throws IOException {
+        final var path = data.toPath().resolve("SSTable_0.bin");
+        SSTable.flush(path, rows.values().iterator(), codec);
+        return new SSTable(path, 0, codec, blockCache);
+    }
+
+    private static void assertRowsEqual(final Collection<Row> expected,
+                                        final Iterator<Row> actual) {
+        for (final var row : expected) {
+            assertTrue(actual.hasNext());
+            assertRowEquals(row, actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static void assertRowEquals(final Row expected,
+                                        final Row actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getCell().getTimestamp(), actual.getCell().getTimestamp());
+        assertEquals(expected.getCell().getData(), actual.getCell().getData());
+    }
+}
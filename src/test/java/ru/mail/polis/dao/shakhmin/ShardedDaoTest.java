@@ -0,0 +1,92 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.WriteBatch;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedDaoTest extends TestBase {
+    private static final int KEYS_COUNT = 1000;
+    private static final int SHARDS = 4;
+
+    @Test
+    void sameAsSingleDao(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (var dao = new ShardedDao.Builder(data).shards(SHARDS).build()) {
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final var key = randomKeyBuffer();
+                final var value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final var removed = expected.firstKey();
+            dao.remove(removed);
+            expected.remove(removed);
+            assertTrue(dao.getCell(removed).isRemoved());
+            assertNull(dao.getCell(randomKeyBuffer()));
+        }
+        try (var dao = new ShardedDao.Builder(data).shards(SHARDS).build()) {
+            final var from = expected.keySet().toArray(new ByteBuffer[0])[KEYS_COUNT / 3];
+            final var to = expected.keySet().toArray(new ByteBuffer[0])[KEYS_COUNT / 2];
+            final var range = dao.range(from, to);
+            for (final var entry : expected.subMap(from, to).entrySet()) {
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), range.next());
+            }
+            assertFalse(range.hasNext());
+            dao.compact();
+            for (final var entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+        final var shards = data.list();
+        assertEquals(SHARDS, shards.length);
+        for (final var shard : shards) {
+            assertTrue(new File(data, shard).list().length > 0);
+        }
+    }
+
+    @Test
+    void batchApplied(@TempDir final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final var batch = new WriteBatch();
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            final var key = randomKeyBuffer();
+            final var value = randomValueBuffer();
+            batch.upsert(key, value);
+            expected.put(key, value);
+        }
+        final var removed = expected.firstKey();
+        batch.remove(removed);
+        expected.remove(removed);
+        try (var dao = new ShardedDao.Builder(data).shards(SHARDS).build()) {
+            dao.applyBatch(batch);
+            assertTrue(dao.getCell(removed).isRemoved());
+        }
+        try (var dao = new ShardedDao.Builder(data).shards(SHARDS).build()) {
+            final var records = dao.iterator(ByteBuffer.allocate(0));
+            for (final var entry : expected.entrySet()) {
+                assertEquals(Record.of(entry.getKey(), entry.getValue()), records.next());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void differentShardsNumber(@TempDir final File data) throws IOException {
+        try (var dao = new ShardedDao.Builder(data).shards(SHARDS).build()) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+        assertThrows(IllegalStateException.class, () -> new ShardedDao.Builder(data).shards(SHARDS + 1).build());
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis.dao.shakhmin;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotTest extends TestBase {
+    private static final int KEYS_COUNT = 1000;
+    private static final int VALUE_SIZE = 100;
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+
+    @Test
+    void laterWritesNotSeen(@TempDir final File data) throws IOException {
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final var dir = new File(data, String.valueOf(offHeap));
+            assertTrue(dir.mkdir());
+            try (var dao = new LSMDao.Builder(dir)
+                    .flushThreshold(FLUSH_THRESHOLD)
+                    .offHeapMemTable(offHeap)
+                    .build()) {
+                final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+                for (int i = 0; i < KEYS_COUNT; i++) {
+                    final var key = randomKeyBuffer();
+                    final var value = randomBuffer(VALUE_SIZE);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+                try (var snapshot = dao.snapshot()) {
+                    int i = 0;
+                    for (final var key : expected.keySet()) {
+                        if (i++ % 2 == 0) {
+                            dao.upsert(key, randomBuffer(VALUE_SIZE));
+                        } else {
+                            dao.remove(key);
+                        }
+                        dao.upsert(randomKeyBuffer(), randomBuffer(VALUE_SIZE));
+                    }
+                    assertSameRecords(expected, snapshot);
+
+                    dao.compact();
+                    assertSameRecords(expected, snapshot);
+                    assertFalse(dao.get(expected.firstKey()).equals(expected.firstEntry().getValue()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void closedSnapshotReleasesVersions() throws IOException {
+        for (final var table : new MutableTable[]{new MemTable(), new OffHeapMemTable()}) {
+            final var key = randomKeyBuffer();
+            final var first = randomBuffer(VALUE_SIZE);
+            final var snapshots = new TreeSet<Long>();
+            table.put(key, Cell.of(1, first), 1, snapshots);
+            snapshots.add(2L);
+            table.put(key, Cell.of(2, randomBuffer(VALUE_SIZE)), 3, snapshots);
+            table.put(key, Cell.of(3, randomBuffer(VALUE_SIZE)), 4, snapshots);
+            assertEquals(first, table.iterator(key, 2).next().getCell().getData());
+            assertFalse(table.iterator(key, 0).hasNext());
+
+            snapshots.clear();
+            final var last = randomBuffer(VALUE_SIZE);
+            table.put(key, Cell.of(4, last), 5, snapshots);
+            assertFalse(table.iterator(key, 2).hasNext());
+            assertEquals(last, table.get(key).getCell().getData());
+        }
+    }
+
+    @Test
+    void versionsAccounted() {
+        final var table = new MemTable();
+        final var key = randomKeyBuffer();
+        table.put(key, Cell.of(1, randomBuffer(VALUE_SIZE)), 1, Collections.emptyNavigableSet());
+        final long size = table.sizeInBytes();
+        final var snapshots = new TreeSet<Long>();
+        snapshots.add(2L);
+        table.put(key, Cell.of(2, randomBuffer(VALUE_SIZE)), 3, snapshots);
+        assertTrue(table.sizeInBytes() > size + VALUE_SIZE);
+
+        table.put(key, Cell.of(3, randomBuffer(VALUE_SIZE)), 4, Collections.emptyNavigableSet());
+        assertEquals(size, table.sizeInBytes());
+    }
+
+    @Test
+    void closedSnapshotNotIterated(@TempDir final File data) throws IOException {
+        try (var dao = new ShardedDao.Builder(data).shards(2).build()) {
+            final var key = randomKeyBuffer();
+            final var value = randomValueBuffer();
+            dao.upsert(key, value);
+            final var snapshot = dao.snapshot();
+            dao.remove(key);
+            assertEquals(value, snapshot.get(key));
+            snapshot.close();
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(key));
+        }
+    }
+
+    private static void assertSameRecords(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+                                          @NotNull final Snapshot snapshot) throws IOException {
+        final var records = snapshot.iterator(ByteBuffer.allocate(0));
+        for (final var entry : expected.entrySet()) {
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), records.next());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,272 @@
+package ru.mail.polis.service;
+
+import com.google.common.base.Charsets;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the batch endpoint of a three node replicated {@link Service} cluster.
+ */
+class BatchTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int KEYS_COUNT = 10;
+    private int port0;
+    private int port1;
+    private int port2;
+    private File data0;
+    private File data1;
+    private File data2;
+    private DAO dao0;
+    private DAO dao1;
+    private DAO dao2;
+    private Service storage0;
+    private Service storage1;
+    private Service storage2;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        port0 = randomPort();
+        port1 = randomPort();
+        port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        dao1 = DAOFactory.create(data1);
+        dao2 = DAOFactory.create(data2);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        storage0.start();
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        storage1.start();
+        storage2 = ServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        stop(2, storage2);
+        dao2.close();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void batchOnEveryReplica() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Insert the keys to remove
+            final List<String> removed = new ArrayList<>();
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                final String key = randomId();
+                assertEquals(201, upsert(0, key, randomValue(), 3, 3).getStatus());
+                removed.add(key);
+            }
+
+            // Batch of upserts and removals
+            final Map<String, byte[]> writes = new LinkedHashMap<>();
+            for (int i = 0; i < KEYS_COUNT; i++) {
+                writes.put(randomId(), randomValue());
+                writes.put(removed.get(i), null);
+            }
+            assertEquals(201, batch(0, writes(writes), 3, 3).getStatus());
+
+            // Check each replica
+            for (final DAO dao : Arrays.asList(dao0, dao1, dao2)) {
+                for (final Map.Entry<String, byte[]> write : writes.entrySet()) {
+                    final ByteBuffer key = ByteBuffer.wrap(write.getKey().getBytes(Charsets.UTF_8));
+                    if (write.getValue() == null) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(ByteBuffer.wrap(write.getValue()), dao.get(key));
+                    }
+                }
+            }
+
+            // Check through the cluster
+            for (final Map.Entry<String, byte[]> write : writes.entrySet()) {
+                final Response response = get(1, write.getKey(), 3, 3);
+                if (write.getValue() == null) {
+                    assertEquals(404, response.getStatus());
+                } else {
+                    assertEquals(200, response.getStatus());
+                    assertArrayEquals(write.getValue(), response.getBody());
+                }
+            }
+        });
+    }
+
+    @Test
+    void malformedBatch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] body = writes(Collections.singletonMap(randomId(), randomValue()));
+            assertEquals(400, batch(0, Arrays.copyOf(body, body.length - 1), 2, 3).getStatus());
+            assertEquals(400, batch(0, new byte[]{0, 0, 0}, 2, 3).getStatus());
+            assertEquals(400, batch(0, body, 4, 3).getStatus());
+        });
+    }
+
+    @Test
+    void unreachableBatchRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(0, storage0);
+            final Map<String, byte[]> writes = new LinkedHashMap<>();
+            writes.put(randomId(), randomValue());
+            writes.put(randomId(), null);
+            assertEquals(504, batch(1, writes(writes), 3, 3).getStatus());
+            assertEquals(201, batch(1, writes(writes), 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void multiGetMergesReplicas() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String overwritten = randomId();
+            final String removed = randomId();
+            final String absent = randomId();
+            final byte[] value1 = randomValue();
+            final byte[] value2 = randomValue();
+
+            // Insert
+            assertEquals(201, upsert(0, overwritten, value1, 3, 3).getStatus());
+            assertEquals(201, upsert(0, removed, randomValue(), 3, 3).getStatus());
+
+            // Stop node 2
+            stop(2, storage2);
+
+            // Overwrite and delete missing node 2
+            assertEquals(201, upsert(0, overwritten, value2, 2, 3).getStatus());
+            assertEquals(202, delete(0, removed, 2, 3).getStatus());
+
+            // Start node 2
+            storage2 = ServiceFactory.create(port2, dao2, endpoints);
+            start(2, storage2);
+
+            // Check the stale node 2 gets the newest values of the replicas
+            final Response response = multiGet(2, keys(Arrays.asList(overwritten, removed, absent)), 3, 3);
+            assertEquals(200, response.getStatus());
+            final List<byte[]> values = values(response.getBody());
+            assertEquals(3, values.size());
+            assertArrayEquals(value2, values.get(0));
+            assertNull(values.get(1));
+            assertNull(values.get(2));
+        });
+    }
+
+    @Test
+    void unreachableMultiGetRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, value, 3, 3).getStatus());
+            stop(0, storage0);
+            final byte[] keys = keys(Arrays.asList(key, randomId()));
+            assertEquals(504, multiGet(1, keys, 3, 3).getStatus());
+
+            final Response response = multiGet(1, keys, 2, 3);
+            assertEquals(200, response.getStatus());
+            final List<byte[]> values = values(response.getBody());
+            assertArrayEquals(value, values.get(0));
+            assertNull(values.get(1));
+        });
+    }
+
+    @Test
+    void malformedMultiGet() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] keys = keys(Collections.singletonList(randomId()));
+            assertEquals(400, multiGet(0, Arrays.copyOf(keys, keys.length - 1), 2, 3).getStatus());
+            assertEquals(400, multiGet(0, keys, 4, 3).getStatus());
+        });
+    }
+
+    /**
+     * Serializes the keys to a multi-get request of {@code [key size (int)][key]}.
+     */
+    @NotNull
+    private static byte[] keys(@NotNull final List<String> keys) {
+        int size = 0;
+        for (final String key : keys) {
+            size += Integer.BYTES + key.getBytes(Charsets.UTF_8).length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final String key : keys) {
+            final byte[] bytes = key.getBytes(Charsets.UTF_8);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses a multi-get response of {@code [value size (int)][value]},
+     * a missing value has size -1 and is parsed to null.
+     */
+    @NotNull
+    private static List<byte[]> values(@NotNull final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<byte[]> values = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            final int size = buffer.getInt();
+            if (size < 0) {
+                values.add(null);
+            } else {
+                final byte[] value = new byte[size];
+                buffer.get(value);
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Serializes the writes to a batch of {@code [key size (int)][key][value size (int)][value]},
+     * a null value is a removal of size -1.
+     */
+    @NotNull
+    private static byte[] writes(@NotNull final Map<String, byte[]> writes) {
+        int size = 0;
+        for (final Map.Entry<String, byte[]> write : writes.entrySet()) {
+            final byte[] value = write.getValue();
+            size += Integer.BYTES * 2 + write.getKey().getBytes(Charsets.UTF_8).length
+                    + (value == null ? 0 : value.length);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final Map.Entry<String, byte[]> write : writes.entrySet()) {
+            final byte[] key = write.getKey().getBytes(Charsets.UTF_8);
+            buffer.putInt(key.length).put(key);
+            final byte[] value = write.getValue();
+            if (value == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(value.length).put(value);
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -132,4 +132,27 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    @NotNull
+    private String batchPath(
+            final int ack,
+            final int from) {
+        return "/v0/entities/batch?replicas=" + ack + "/" + from;
+    }
+
+    Response batch(
+            final int node,
+            @NotNull final byte[] writes,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).put(batchPath(ack, from), writes);
+    }
+
+    Response multiGet(
+            final int node,
+            @NotNull final byte[] keys,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post(batchPath(ack, from), keys);
+    }
 }
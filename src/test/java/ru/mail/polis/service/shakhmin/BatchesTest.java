@@ -0,0 +1,86 @@
+package ru.mail.polis.service.shakhmin;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.WriteBatch;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BatchesTest extends TestBase {
+    private static final int WRITES_COUNT = 100;
+
+    @Test
+    void batchRoundTrip() {
+        final var batch = new WriteBatch();
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            if (i % 3 == 0) {
+                batch.remove(randomKeyBuffer());
+            } else {
+                batch.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+        }
+        final var parsed = Batches.parse(Batches.serialize(batch));
+        assertEquals(batch.size(), parsed.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final var expected = batch.writes().get(i);
+            final var actual = parsed.writes().get(i);
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getValue(), actual.getValue());
+            // Each key and value has an array of its own rather than a slice of the body
+            assertEquals(actual.getKey().remaining(), actual.getKey().capacity());
+            if (i % 3 == 0) {
+                assertNull(actual.getValue());
+            } else {
+                assertEquals(actual.getValue().remaining(), actual.getValue().capacity());
+            }
+        }
+    }
+
+    @Test
+    void malformedBatch() {
+        final var body = Batches.serialize(new WriteBatch().upsert(randomKeyBuffer(), randomValueBuffer()));
+        assertThrows(IllegalArgumentException.class, () -> Batches.parse(new byte[]{0, 0, 0}));
+        assertThrows(IllegalArgumentException.class,
+                () -> Batches.parse(ByteBuffer.allocate(body.length - 1).put(body, 0, body.length - 1).array()));
+        assertThrows(IllegalArgumentException.class,
+                () -> Batches.parse(ByteBuffer.allocate(Integer.BYTES * 2).putInt(1).array()));
+    }
+
+    @Test
+    void replicaValuesRoundTrip() {
+        final long timestamp = System.currentTimeMillis();
+        final var values = List.of(
+                Value.present(randomValue(), timestamp),
+                Value.removed(-(timestamp + 1)),
+                Value.absent(),
+                Value.present(new byte[0], timestamp + 2));
+        final var parsed = Batches.parseReplicaValues(Batches.serializeReplicaValues(values), values.size());
+        assertEquals(values.size(), parsed.size());
+        for (int i = 0; i < values.size(); i++) {
+            final var expected = values.get(i);
+            final var actual = parsed.get(i);
+            assertEquals(expected.getState(), actual.getState());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertArrayEquals(expected.getData(), actual.getData());
+        }
+        assertEquals(timestamp + 1, parsed.get(1).getTimestamp());
+        assertNull(parsed.get(1).getData());
+        assertNull(parsed.get(2).getData());
+    }
+
+    @Test
+    void malformedReplicaValues() {
+        final var body = Batches.serializeReplicaValues(List.of(Value.present(randomValue(), 1L)));
+        assertThrows(IllegalArgumentException.class, () -> Batches.parseReplicaValues(body, 2));
+        assertThrows(IllegalArgumentException.class,
+                () -> Batches.parseReplicaValues(Arrays.copyOf(body, body.length - 1), 1));
+        final var wrongState = body.clone();
+        wrongState[0] = 3;
+        assertThrows(IllegalArgumentException.class, () -> Batches.parseReplicaValues(wrongState, 1));
+    }
+}